@@ -8,6 +8,9 @@
 plugins {
     // Apply the application plugin to add support for building a CLI application in Java.
     application
+
+    // Benchmarks live in src/jmh/java, run them with `gradle jmh`
+    alias(libs.plugins.jmh)
 }
 
 repositories {
@@ -37,6 +40,17 @@ application {
     mainClass = "org.chip8.chip8.Chip8"
 }
 
+jmh {
+    jmhVersion = libs.versions.jmh.get()
+    // JSON so runs from different versions can be compared
+    resultFormat = "JSON"
+    resultsFile = layout.buildDirectory.file("reports/jmh/results.json")
+    // Pick benchmarks with -PjmhInclude=Draw
+    if (project.hasProperty("jmhInclude")) {
+        includes = listOf(project.property("jmhInclude").toString())
+    }
+}
+
 tasks.named<Test>("test") {
     // Use JUnit Platform for unit tests.
     useJUnitPlatform()
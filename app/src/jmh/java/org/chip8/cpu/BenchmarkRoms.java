@@ -0,0 +1,80 @@
+package org.chip8.cpu;
+
+/**
+ * Small roms that loop forever, each leaning on a different part of the cpu.
+ * None of them wait for keys or the delay timer, so every benchmark
+ * iteration runs real instructions.
+ */
+public enum BenchmarkRoms {
+
+    /**
+     * Register arithmetic, skips and jumps, the JIT's best case
+     */
+    ALU(0x6001, // 200 LD V0, $01
+            0x6103, // 202 LD V1, $03
+            0x8014, // 204 ADD V0, V1
+            0x8105, // 206 SUB V1, V0
+            0x8206, // 208 SHR V2
+            0x8316, // 20A SHR V3, V1
+            0x840E, // 20C SHL V4
+            0x8503, // 20E XOR V5, V0
+            0x7507, // 210 ADD V5, $07
+            0xA300, // 212 LD I, $300
+            0xF51E, // 214 ADD I, V5
+            0x3000, // 216 SE V0, $00
+            0x1204), // 218 JP $204
+
+    /**
+     * Sprites all over the screen, lots of collisions
+     */
+    SPRITES(0xA300, // 200 LD I, $300
+            0x6000, // 202 LD V0, $00
+            0x6100, // 204 LD V1, $00
+            0xD018, // 206 DRW V0, V1, 8
+            0x7007, // 208 ADD V0, $07
+            0x7103, // 20A ADD V1, $03
+            0xD01F, // 20C DRW V0, V1, 15
+            0x7005, // 20E ADD V0, $05
+            0xD012, // 210 DRW V0, V1, 2
+            0x1206), // 212 JP $206
+
+    /**
+     * Calls, random numbers, BCD and memory stores and loads
+     */
+    CALLS(0xA300, // 200 LD I, $300
+            0x2210, // 202 CALL $210
+            0xC0FF, // 204 RND V0, $FF
+            0xF033, // 206 LD B, V0
+            0xF265, // 208 LD V2, [I]
+            0xF255, // 20A LD [I], V2
+            0x1202, // 20C JP $202
+            0x0000, // 20E
+            0x2216, // 210 CALL $216
+            0x7101, // 212 ADD V1, $01
+            0x00EE, // 214 RET
+            0x8104, // 216 ADD V1, V0
+            0x00EE); // 218 RET
+
+    private final int[] opcodes;
+
+    BenchmarkRoms(int... opcodes) {
+        this.opcodes = opcodes;
+    }
+
+    /**
+     * The rom, with some sprite data at $300
+     *
+     * @return
+     */
+    public byte[] bytes() {
+        byte[] rom = new byte[0x120];
+        for (int index = 0; index < opcodes.length; index++) {
+            rom[index * 2] = (byte) (opcodes[index] >> 8);
+            rom[index * 2 + 1] = (byte) opcodes[index];
+        }
+        for (int index = 0x100; index < rom.length; index++) {
+            rom[index] = (byte) (index * 37);
+        }
+        return rom;
+    }
+}
@@ -0,0 +1,67 @@
+package org.chip8.cpu;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Instructions per second of each interpreter on each benchmark rom.
+ * Scores are in instructions per microsecond.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CpuBenchmark {
+
+    private static final int BATCH = 10_000;
+
+    @Param({ "SWITCH", "TABLE", "CACHED", "JIT", "AOT" })
+    public Interpreter interpreter;
+
+    @Param({ "ALU", "SPRITES", "CALLS" })
+    public BenchmarkRoms rom;
+
+    private Cpu cpu;
+
+    @Setup
+    public void setUp() throws IOException {
+        cpu = new Cpu();
+        cpu.setSeed(1);
+        cpu.setAotCache(new AotCache(Files.createTempDirectory("chip8-aot")));
+        cpu.setInterpreter(interpreter);
+        cpu.loadRom(rom.bytes());
+    }
+
+    /**
+     * One instruction at a time, the way the game loop used to drive it
+     */
+    @Benchmark
+    public void tick() {
+        cpu.tick();
+    }
+
+    /**
+     * A batch through run(), which is what lets the JIT run whole blocks
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int run() {
+        return cpu.run(BATCH);
+    }
+}
@@ -0,0 +1,79 @@
+package org.chip8.cpu;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DXYN on its own, for different sprite heights and how full the screen is
+ * (which decides how often sprites collide).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DrawBenchmark {
+
+    @Param({ "1", "5", "15" })
+    public int height;
+
+    /**
+     * Fraction of pixels on before drawing
+     */
+    @Param({ "0.0", "0.1", "0.5" })
+    public double density;
+
+    /**
+     * Super-Chip 128x64, where a sprite row can straddle two longs
+     */
+    @Param({ "false", "true" })
+    public boolean hires;
+
+    private Cpu cpu;
+    private int position;
+
+    @Setup
+    public void setUp() {
+        cpu = new Cpu();
+        if (hires)
+            cpu.setPlatform(Platform.SCHIP);
+        cpu.loadRom(BenchmarkRoms.SPRITES.bytes());
+        cpu.setHires(hires);
+        cpu.setI(0x300);
+        java.util.Random random = new java.util.Random(1);
+        FrameBuffer frameBuffer = cpu.getFrameBuffer();
+        for (int y = 0; y < frameBuffer.getHeight(); y++) {
+            for (int word = 0; word < frameBuffer.getWidth() / 64; word++) {
+                long row = 0;
+                for (int x = 0; x < 64; x++) {
+                    if (random.nextDouble() < density)
+                        row |= 1L << x;
+                }
+                frameBuffer.setRow(0, y, word, row);
+            }
+        }
+    }
+
+    @Benchmark
+    public int draw() {
+        // Walk the sprite around the screen, wrapping included
+        position += 0x0305;
+        int[] v = cpu.getV();
+        v[0] = position & 0x7F;
+        v[1] = (position >> 8) & 0x3F;
+        cpu.draw(0, 1, height);
+        return v[0xF];
+    }
+}
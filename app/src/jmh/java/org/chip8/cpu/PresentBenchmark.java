@@ -0,0 +1,70 @@
+package org.chip8.cpu;
+
+import java.util.concurrent.TimeUnit;
+
+import org.chip8.display.FrameHandoff;
+import org.chip8.display.ScreenImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Handing a frame to the render thread and copying it into the screen image,
+ * what happens every frame something was drawn. Both sides run on one thread
+ * here and no window is needed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PresentBenchmark {
+
+    /**
+     * Rows changed since the last frame
+     */
+    @Param({ "1", "8", "32" })
+    public int dirtyRows;
+
+    /**
+     * 128x64 instead of 64x32
+     */
+    @Param({ "false", "true" })
+    public boolean hires;
+
+    private FrameBuffer frameBuffer;
+    private FrameHandoff frames;
+    private ScreenImage screen;
+    private long pattern = 0x0F0F_3C3C_A5A5_FF00L;
+
+    @Setup
+    public void setUp() {
+        frameBuffer = new FrameBuffer();
+        frames = new FrameHandoff();
+        screen = new ScreenImage();
+        frameBuffer.setMode(hires, 1, 1);
+    }
+
+    @Benchmark
+    public Object present() {
+        pattern = Long.rotateLeft(pattern, 3);
+        for (int y = 0; y < dirtyRows; y++) {
+            frameBuffer.setRow(0, y, 0, pattern ^ y);
+            if (hires)
+                frameBuffer.setRow(0, y, 1, pattern ^ ~y);
+        }
+        frames.publish(frameBuffer);
+        frames.take();
+        screen.update(frames.getFront());
+        return screen.getImage();
+    }
+}
@@ -0,0 +1,62 @@
+package org.chip8.cpu;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading a rom, including what each interpreter does on load (AOT loads
+ * its compiled class from a warm cache).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RomLoadBenchmark {
+
+    @Param({ "SWITCH", "AOT" })
+    public Interpreter interpreter;
+
+    /**
+     * Rom size in bytes, 3584 is as big as a rom gets
+     */
+    @Param({ "288", "3584" })
+    public int size;
+
+    private Cpu cpu;
+    private byte[] rom;
+
+    @Setup
+    public void setUp() throws IOException {
+        rom = new byte[size];
+        byte[] code = BenchmarkRoms.CALLS.bytes();
+        new Random(1).nextBytes(rom);
+        System.arraycopy(code, 0, rom, 0, Math.min(code.length, size));
+        cpu = new Cpu();
+        cpu.setAotCache(new AotCache(Files.createTempDirectory("chip8-aot")));
+        cpu.setInterpreter(interpreter);
+        // Fill the cache so the benchmark measures a hit
+        cpu.loadRom(rom);
+    }
+
+    @Benchmark
+    public Cpu loadRom() {
+        cpu.loadRom(rom);
+        return cpu;
+    }
+}
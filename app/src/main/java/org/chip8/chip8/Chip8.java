@@ -1,86 +1,375 @@
 package org.chip8.chip8;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
 import org.chip8.cpu.Cpu;
+import org.chip8.cpu.FrameBuffer;
+import org.chip8.cpu.Platform;
 import org.chip8.display.Gui;
+import org.chip8.input.Keypad;
+import org.chip8.metrics.EmulatorMetrics;
+import org.chip8.rom.Rom;
+import org.chip8.rom.RomLibrary;
+import org.chip8.state.InputLog;
+import org.chip8.state.RewindBuffer;
+import org.chip8.state.SaveSlots;
+import org.chip8.trace.TraceQuery;
 
 public class Chip8 implements Runnable {
 
     private Cpu cpu;
     private Gui gui;
     private final int WIDTH = 64, HEIGHT = 32;
-    private final int FPS = 60;
-    private final double FRAME_INTERVAL = 1.0 / FPS;
-    private int counter = 0;
+    private final int REWIND_SECONDS = 30, REWIND_BUDGET = 8 * 1024 * 1024;
+    private long presentedVersion = -1;
+    private SaveSlots saveSlots;
+    private RewindBuffer rewind = new RewindBuffer(REWIND_SECONDS, REWIND_BUDGET);
+    private FrameScheduler scheduler = new FrameScheduler(FrameScheduler.DEFAULT_INSTRUCTIONS_PER_FRAME);
+    private long seed = System.nanoTime();
+    private Path recordFile;
+    private InputLog recording, replaying;
+    private int replayFrame;
+    private EmulatorMetrics metrics = new EmulatorMetrics();
+    private RomLibrary library = RomLibrary.defaultLibrary();
+    private Path libraryDirectory;
+    /**
+     * Hash of the rom playing, null until one is loaded
+     */
+    private String romHash;
+    /**
+     * --ipf was given, it wins over what the library remembers
+     */
+    private boolean instructionsPerFrameSet = false;
+    /**
+     * --platform was given, otherwise it is guessed for each rom
+     */
+    private Platform platform;
+    /**
+     * --debug was given, show the instructions running next to the screen
+     */
+    private boolean debug = false;
 
     /**
      * Everything that must be done in a single frame.
      */
     private void handleFrame() {
-        if (gui.isKeyPressed()) {
-            cpu.setKeyPressed(gui.getKeyCode());
+        if (gui.getPause() != cpu.getPause()) {
+            cpu.setPause(gui.getPause());
+        }
+        // Nothing happens in a paused frame, recordings skip them
+        if (cpu.getPause())
+            return;
+
+        // One snapshot of the keypad for the whole frame
+        int keys;
+        if (replaying != null) {
+            keys = replaying.getKeys(replayFrame);
         } else {
-            cpu.setKeyPressed(-1);
+            Keypad keypad = gui.getKeypad();
+            keys = keypad.poll();
+            if (keypad.getLastPressAt() != 0)
+                metrics.keyPressed(keypad.getLastPressAt());
         }
+        cpu.setKeys(keys);
 
-        if (gui.getPause() != cpu.getPause()) {
-            cpu.setPause(gui.getPause());
+        metrics.frame(scheduler.runFrame(cpu));
+
+        // The shutdown hook may stop the recording at any moment
+        InputLog log = recording;
+        if (log != null)
+            log.recordFrame(keys, cpu.stateHash());
+        if (replaying != null)
+            checkReplay();
+    }
+
+    /**
+     * Compare the frame that just ran with the recording, hand control back
+     * to the keyboard when the recording runs out or goes off
+     */
+    private void checkReplay() {
+        if (cpu.stateHash() != replaying.getHash(replayFrame)) {
+            System.out.println("Replay diverged at frame " + replayFrame);
+            replaying = null;
+        } else if (++replayFrame == replaying.getFrames()) {
+            System.out.println("Replay finished, all " + replayFrame + " frames matched");
+            replaying = null;
         }
-        cpu.tick();
+    }
 
-        // For every 11 CPU ticks, the clocks go down by 1.
-        if (counter % 11 == 0)
-            cpu.handleTimers();
-        counter++;
-        gui.renderGame();
+    /**
+     * Start recording or replaying when a rom is loaded. Both need the rom to
+     * start from scratch with a known seed.
+     */
+    private void startRecordOrReplay() {
+        if (replaying != null && !replaying.getRomHash().equals(romHash)) {
+            System.out.println("The replay was recorded with a different rom, ignoring it");
+            replaying = null;
+        }
+        if (replaying != null) {
+            seed = replaying.getSeed();
+            scheduler.setInstructionsPerFrame(replaying.getInstructionsPerFrame());
+        }
+        cpu.setSeed(seed);
+        // A replay starts where its recording did
+        if (replaying != null && replaying.getStartState() != null) {
+            try {
+                cpu.loadState(ByteBuffer.wrap(replaying.getStartState()));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Could not load the replay's start state, ignoring the replay");
+                replaying = null;
+            }
+        }
+        if (recordFile != null) {
+            recording = new InputLog(seed, scheduler.getInstructionsPerFrame(), romHash, cpu.getPlatform());
+            if (replaying != null)
+                recording.setStartState(replaying.getStartState());
+            Runtime.getRuntime().addShutdownHook(new Thread(this::stopRecording));
+        }
+    }
+
+    /**
+     * Write the recording out and stop, a rewind or state load would make the
+     * rest of it impossible to replay
+     */
+    private synchronized void stopRecording() {
+        if (recording == null)
+            return;
+        try {
+            recording.write(recordFile);
+            System.out.println("Recorded " + recording.getFrames() + " frames to " + recordFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        recording = null;
+    }
+
+    /**
+     * Save or load a state if one was asked for. Only ever called between
+     * frames, so a state is always a whole frame.
+     */
+    private void handleSaveStates() {
+        int save = gui.takeSaveRequest();
+        int load = gui.takeLoadRequest();
+        if (saveSlots == null)
+            return;
+        if (save != -1) {
+            saveSlots.save(save, cpu);
+            System.out.println("Saved state to slot " + (save + 1));
+        }
+        if (load != -1) {
+            if (saveSlots.load(load, cpu)) {
+                // History from before the load would rewind into another game
+                rewind.clear();
+                stopRecording();
+                replaying = null;
+                System.out.println("Loaded state from slot " + (load + 1));
+            } else
+                System.out.println("Slot " + (load + 1) + " is empty");
+        }
+    }
+
+    /**
+     * Switch to a rom from the menu, between frames. The first rom starts the
+     * recording or replay, later ones stop them, they only cover one rom.
+     *
+     * @param file
+     * @return false if it could not be loaded, whatever was playing carries on
+     */
+    private boolean loadRom(Path file) {
+        Rom rom;
+        try {
+            rom = library.load(file);
+            Platform romPlatform = platform != null ? platform : library.info(file).getPlatform();
+            // A replay has to run on the platform it was recorded on
+            if (romHash == null && replaying != null && replaying.getRomHash().equals(rom.getHash()))
+                romPlatform = replaying.getPlatform();
+            // Check before switching, so a rom that doesn't fit leaves the old one running
+            if (rom.getSize() > romPlatform.getMemorySize() - 0x200)
+                throw new IllegalArgumentException("Rom is too big for " + romPlatform);
+            if (romPlatform != cpu.getPlatform())
+                cpu.setPlatform(romPlatform);
+            cpu.loadRom(rom.toByteArray());
+            // The platform may be a guess, say which so --platform can fix it
+            System.out.println("Running " + file.getFileName() + " as " + romPlatform);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Could not load " + file);
+            e.printStackTrace();
+            return false;
+        }
+        boolean first = romHash == null;
+        romHash = rom.getHash();
+
+        // Play it at the speed it was last played at, or what its platform usually wants
+        int instructionsPerFrame = library.getInstructionsPerFrame(romHash);
+        if (instructionsPerFrame == 0)
+            instructionsPerFrame = cpu.getPlatform().getInstructionsPerFrame();
+        if (!instructionsPerFrameSet)
+            scheduler.setInstructionsPerFrame(instructionsPerFrame);
+        if (first) {
+            startRecordOrReplay();
+        } else {
+            stopRecording();
+            replaying = null;
+        }
+        library.setInstructionsPerFrame(romHash, scheduler.getInstructionsPerFrame());
+
+        rewind.clear();
+        presentedVersion = -1;
+        try {
+            if (saveSlots != null)
+                saveSlots.close();
+            saveSlots = SaveSlots.forRom(cpu.getRom(), cpu.getPlatform());
+        } catch (IOException e) {
+            saveSlots = null;
+            System.out.println("Save states are not available");
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    /**
+     * Hand the screen to the render thread, but only if something was drawn
+     * since it was last handed over. Never waits for drawing.
+     *
+     * @return true if it was handed over
+     */
+    private boolean presentFrame() {
+        FrameBuffer frameBuffer = cpu.getFrameBuffer();
+        if (frameBuffer.getVersion() == presentedVersion)
+            return false;
+        presentedVersion = frameBuffer.getVersion();
+        gui.getFrameHandoff().publish(frameBuffer);
+        return true;
     }
 
-    @SuppressWarnings("empty-statement")
     public void gameLoop() {
-        gui = new Gui(WIDTH, HEIGHT);
-        cpu = new Cpu(gui.getGameScreen());
-        cpu.attachDebugText(gui.getDebugText());
-        boolean dropFrame = false;
-        double currentTime = 0,
-                previousTime = System.nanoTime() / 1e9,
-                deltaTime = 0,
-                accumulatedTime = 0;
+        gui = new Gui(WIDTH, HEIGHT, debug);
+        cpu = new Cpu();
+        cpu.setBeeper(gui::beep);
+        // Tracing costs a little per instruction and turns the JIT off, only do it
+        // when someone is looking
+        if (gui.isDebug())
+            cpu.setTraceSink(gui.getTraceBuffer());
         boolean romLoaded = false;
+        metrics.register();
+        if (libraryDirectory != null) {
+            try {
+                gui.setRomLibrary(library.scan(libraryDirectory));
+            } catch (IOException e) {
+                System.out.println("Could not read " + libraryDirectory);
+                e.printStackTrace();
+            }
+        }
 
         while (true) {
+            // Rewinding goes at display rate even in turbo. With no rom or while
+            // paused there is nothing to run fast, wait out the frame instead of spinning
+            boolean turbo = gui.isTurbo() && !gui.isRewinding() && romLoaded && !gui.getPause();
+            if (turbo != scheduler.isTurbo())
+                scheduler.setTurbo(turbo);
+            int frames = scheduler.awaitFrame();
+            long start = System.nanoTime();
+
+            // Until a rom loads the render thread shows the no rom screen
+            Path romRequest = gui.takeRomRequest();
+            if (romRequest != null && loadRom(romRequest))
+                romLoaded = true;
 
-            currentTime = System.nanoTime() / 1e9;
-            deltaTime = currentTime - previousTime;
-            previousTime = currentTime;
-            accumulatedTime += deltaTime;
-
-            for (dropFrame = !(accumulatedTime >= FRAME_INTERVAL); !dropFrame
-                    && accumulatedTime >= FRAME_INTERVAL; accumulatedTime -= FRAME_INTERVAL)
-                ;
-
-            if (romLoaded) {
-                handleFrame();
-            } else if (!gui.romInserted()) {
-                gui.noRomInsertedScreen();
-            } else {
-                if (gui.getLoadedRom() != null) {
-                    cpu.loadRom(gui.getLoadedRom());
-                    romLoaded = true;
+            if (romLoaded && gui.isRewinding()) {
+                if (rewind.rewind(cpu)) {
+                    stopRecording();
+                    replaying = null;
                 }
+                long emulated = System.nanoTime();
+                boolean presented = presentFrame();
+                metrics.loop(start, emulated, System.nanoTime(), presented, scheduler.getSkippedFrames());
+            } else if (romLoaded) {
+                // If we are running behind or in turbo, emulate every frame but only draw once
+                for (int frame = 0; frame < frames; frame++) {
+                    handleFrame();
+                }
+                // History gets the frame that is shown, not every frame run, so turbo
+                // doesn't encode hundreds of states a refresh and rewinding steps back
+                // through what was on screen
+                if (!cpu.getPause())
+                    rewind.record(cpu);
+                handleSaveStates();
+                long emulated = System.nanoTime();
+                boolean presented = presentFrame();
+                metrics.loop(start, emulated, System.nanoTime(), presented, scheduler.getSkippedFrames());
             }
             gui.renderDebug();
+        }
+    }
 
-            if (dropFrame)
-                easeUsage();
+    /**
+     * How many instructions run every 60th of a second
+     * 
+     * @param instructionsPerFrame
+     */
+    public void setInstructionsPerFrame(int instructionsPerFrame) {
+        scheduler.setInstructionsPerFrame(instructionsPerFrame);
+        instructionsPerFrameSet = true;
+    }
 
-        }
+    /**
+     * Run every rom as this platform instead of guessing from its contents
+     * 
+     * @param platform
+     */
+    public void setPlatform(Platform platform) {
+        this.platform = platform;
     }
 
-    private void easeUsage() {
-        try {
+    /**
+     * Roms in this directory are listed in the Library menu
+     * 
+     * @param libraryDirectory
+     */
+    public void setLibraryDirectory(Path libraryDirectory) {
+        this.libraryDirectory = libraryDirectory;
+    }
 
-            Thread.sleep(1);
-        } catch (InterruptedException e) {
-        }
+    /**
+     * Record seed, input and frame hashes from the first frame of the rom
+     * 
+     * @param recordFile Written when the emulator exits
+     */
+    public void setRecordFile(Path recordFile) {
+        this.recordFile = recordFile;
+    }
+
+    /**
+     * Play a recording back once the rom it was made with is loaded
+     * 
+     * @param replayFile
+     * @throws IOException
+     */
+    public void setReplayFile(Path replayFile) throws IOException {
+        replaying = InputLog.read(replayFile);
+    }
+
+    /**
+     * In turbo, draw every frameSkip frames instead of once per refresh
+     * 
+     * @param frameSkip
+     */
+    public void setFrameSkip(int frameSkip) {
+        scheduler.setFrameSkip(frameSkip);
+    }
+
+    /**
+     * Show the last instructions executed next to the screen and write them to
+     * debug.txt. Must be set before the game loop starts
+     * 
+     * @param debug
+     */
+    public void setDebug(boolean debug) {
+        this.debug = debug;
     }
 
     @Override
@@ -89,7 +378,38 @@ public class Chip8 implements Runnable {
     }
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--headless")) {
+            Headless.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--trace-query")) {
+            TraceQuery.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         Chip8 chip8 = new Chip8();
+        if (Arrays.asList(args).contains("--debug")) {
+            chip8.setDebug(true);
+            args = Arrays.stream(args).filter(arg -> !arg.equals("--debug")).toArray(String[]::new);
+        }
+        for (int index = 0; index + 1 < args.length; index += 2) {
+            if (args[index].equals("--ipf"))
+                chip8.setInstructionsPerFrame(Integer.parseInt(args[index + 1]));
+            else if (args[index].equals("--frame-skip"))
+                chip8.setFrameSkip(Integer.parseInt(args[index + 1]));
+            else if (args[index].equals("--platform"))
+                chip8.setPlatform(Platform.parse(args[index + 1]));
+            else if (args[index].equals("--library"))
+                chip8.setLibraryDirectory(Paths.get(args[index + 1]));
+            else if (args[index].equals("--record"))
+                chip8.setRecordFile(Paths.get(args[index + 1]));
+            else if (args[index].equals("--replay")) {
+                try {
+                    chip8.setReplayFile(Paths.get(args[index + 1]));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
         Thread t = new Thread(chip8);
         t.start();
     }
@@ -0,0 +1,208 @@
+package org.chip8.chip8;
+
+import java.util.concurrent.locks.LockSupport;
+
+import org.chip8.cpu.Cpu;
+import org.chip8.jfr.FrameEvent;
+import org.chip8.jfr.Jfr;
+
+/**
+ * Keeps the emulator on a 60hz wall clock.
+ *
+ * Every frame runs a fixed number of instructions and counts the timers down
+ * once, so game speed no longer depends on how fast the host can spin.
+ * Between frames the thread parks and only spins for the last moment, parking
+ * alone can wake up a little late.
+ *
+ * In turbo the clock is ignored: frames are emulated as fast as the host
+ * allows, timers still tick once per emulated frame, and the display is only
+ * updated about once per refresh, or once every frameSkip frames if set.
+ */
+public class FrameScheduler {
+
+    public static final int FPS = 60;
+
+    /**
+     * About 660 instructions a second, what the old loop ran per timer tick
+     */
+    public static final int DEFAULT_INSTRUCTIONS_PER_FRAME = 11;
+
+    private static final long FRAME_NANOS = 1_000_000_000L / FPS;
+
+    /**
+     * Spin instead of park once the next frame is this close
+     */
+    private static final long SPIN_NANOS = 250_000;
+
+    /**
+     * If we fall further behind than this (debugger, laptop lid...) give up
+     * catching up and start counting again from now
+     */
+    private static final int MAX_FRAMES_BEHIND = 6;
+
+    /**
+     * Most frames emulated between two displayed ones in turbo
+     */
+    private static final int MAX_TURBO_BATCH = 1 << 16;
+
+    private int instructionsPerFrame;
+    private long nextFrame;
+    private long frames, skippedFrames;
+    private boolean turbo = false;
+    private int frameSkip = 0;
+    /**
+     * Frames per batch in turbo, grown or shrunk so a batch takes about one
+     * refresh
+     */
+    private int turboBatch = 1;
+    private long lastBatch;
+    /**
+     * The cpu was left waiting for a key at the end of the last frame
+     */
+    private boolean waitingForKey = false;
+
+    /**
+     * @param instructionsPerFrame
+     */
+    public FrameScheduler(int instructionsPerFrame) {
+        setInstructionsPerFrame(instructionsPerFrame);
+    }
+
+    /**
+     * Wait until the next frame is due. The first call returns straight away.
+     *
+     * @return Number of frames to run, more than 1 if we are running behind
+     */
+    public int awaitFrame() {
+        if (turbo && !waitingForKey)
+            return turboFrames();
+        if (nextFrame == 0)
+            nextFrame = System.nanoTime();
+
+        long remaining;
+        while ((remaining = nextFrame - System.nanoTime()) > 0) {
+            if (remaining > SPIN_NANOS)
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            else
+                Thread.onSpinWait();
+        }
+
+        long now = System.nanoTime();
+        int due = (int) ((now - nextFrame) / FRAME_NANOS) + 1;
+        if (due > MAX_FRAMES_BEHIND) {
+            skippedFrames += due - 1;
+            due = 1;
+            nextFrame = now;
+        }
+        nextFrame += due * FRAME_NANOS;
+        return due;
+    }
+
+    private int turboFrames() {
+        long now = System.nanoTime();
+        // Leaving turbo carries on from here, not from where it was entered
+        nextFrame = now;
+        if (frameSkip > 0)
+            return frameSkip;
+        // The previous batch (and drawing it) took less than a refresh, run more
+        if (now - lastBatch < FRAME_NANOS)
+            turboBatch = Math.min(turboBatch * 2, MAX_TURBO_BATCH);
+        else if (turboBatch > 1)
+            turboBatch /= 2;
+        lastBatch = now;
+        return turboBatch;
+    }
+
+    /**
+     * Run one frame worth of instructions, then tick the timers once
+     *
+     * @param cpu
+     * @return Number of instructions executed
+     */
+    public int runFrame(Cpu cpu) {
+        return runFrame(cpu, instructionsPerFrame);
+    }
+
+    /**
+     * Run a frame with a different instruction count, e.g. the last bit of a
+     * run that has to stop at an exact cycle
+     *
+     * @param cpu
+     * @param instructions
+     * @return Number of instructions executed
+     */
+    public int runFrame(Cpu cpu, int instructions) {
+        FrameEvent event = Jfr.isActive() ? new FrameEvent() : null;
+        if (event != null)
+            event.begin();
+        int executed = cpu.run(instructions);
+        // Time stands still while paused
+        if (!cpu.getPause())
+            cpu.handleTimers();
+        waitingForKey = cpu.isWaitingForKey();
+        if (event != null && event.isEnabled()) {
+            event.frame = frames;
+            event.instructions = executed;
+            event.turbo = turbo;
+            event.commit();
+        }
+        frames++;
+        return executed;
+    }
+
+    public int getInstructionsPerFrame() {
+        return instructionsPerFrame;
+    }
+
+    public void setInstructionsPerFrame(int instructionsPerFrame) {
+        if (instructionsPerFrame < 1)
+            throw new IllegalArgumentException("Need at least one instruction per frame");
+        this.instructionsPerFrame = instructionsPerFrame;
+    }
+
+    public boolean isTurbo() {
+        return turbo;
+    }
+
+    /**
+     * Run as fast as possible, drawing only now and then
+     *
+     * @param turbo
+     */
+    public void setTurbo(boolean turbo) {
+        this.turbo = turbo;
+        turboBatch = 1;
+        lastBatch = System.nanoTime();
+    }
+
+    public int getFrameSkip() {
+        return frameSkip;
+    }
+
+    /**
+     * In turbo, draw every frameSkip frames instead of once per refresh
+     *
+     * @param frameSkip 0 for once per refresh
+     */
+    public void setFrameSkip(int frameSkip) {
+        this.frameSkip = Math.max(0, frameSkip);
+    }
+
+    /**
+     * Frames run so far
+     *
+     * @return
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Frames given up on because we fell too far behind
+     *
+     * @return
+     */
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+}
@@ -0,0 +1,399 @@
+package org.chip8.chip8;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.chip8.cpu.AotCache;
+import org.chip8.cpu.Cpu;
+import org.chip8.cpu.FrameBuffer;
+import org.chip8.cpu.Interpreter;
+import org.chip8.cpu.Platform;
+import org.chip8.rom.Rom;
+import org.chip8.state.InputLog;
+import org.chip8.trace.Profiler;
+import org.chip8.trace.TraceBuffer;
+import org.chip8.trace.TraceFile;
+
+/**
+ * Runs a ROM without a window.
+ *
+ * Usage: Headless rom.ch8 [--cycles N] [--interpreter switch|table|cached|jit|aot] [--platform chip8|schip|xochip] [--aot-cache DIR] [--screen] [--state] [--pbm out.pbm] [--trace N] [--trace-file FILE] [--ipf N] [--realtime] [--load-state FILE] [--save-state FILE] [--seed N] [--record FILE] [--replay FILE] [--profile N] [--coverage FILE]
+ */
+public class Headless {
+
+    private File rom;
+    private long cycles = 1_000_000;
+    private Interpreter interpreter = Interpreter.SWITCH;
+    private Path aotCache;
+    private boolean printScreen = false;
+    private boolean printState = false;
+    private File pbmFile;
+    private int traceLines;
+    private Path traceFile;
+    /**
+     * 0 until --ipf is given, then the platform decides
+     */
+    private int instructionsPerFrame;
+    private Platform platform;
+    private boolean realtime = false;
+    private Path loadState, saveState;
+    private long seed = System.nanoTime();
+    private Path recordFile, replayFile;
+    private int profileLines;
+    private Path coverageFile;
+
+    private static void usage() {
+        System.out.println("Usage: Headless rom.ch8 [options]");
+        System.out.println("  --cycles N     Number of instructions to execute (default 1000000)");
+        System.out.println("  --interpreter  switch, table, cached, jit or aot (default switch)");
+        System.out.println("  --platform     chip8, schip or xochip (default guessed from the rom)");
+        System.out.println("  --aot-cache DIR  Where aot keeps compiled roms (default ~/.chip8/aot)");
+        System.out.println("  --screen       Print the final screen as text");
+        System.out.println("  --state        Print the final registers and timers");
+        System.out.println("  --pbm FILE     Write the final screen as a PBM image");
+        System.out.println("  --trace N      Print the last N instructions executed");
+        System.out.println("  --trace-file FILE  Write every instruction to a binary trace, see --trace-query");
+        System.out.println("  --ipf N        Instructions per 60hz frame, the timers tick once a frame (default "
+                + FrameScheduler.DEFAULT_INSTRUCTIONS_PER_FRAME + " for chip8, more for the others)");
+        System.out.println("  --realtime     Run frames at 60hz instead of as fast as possible");
+        System.out.println("  --load-state FILE  Start from a save state instead of the start of the rom");
+        System.out.println("  --save-state FILE  Save the final state");
+        System.out.println("  --seed N       Seed for the random numbers CXNN gives");
+        System.out.println("  --record FILE  Record seed, input and a hash of every frame");
+        System.out.println("  --replay FILE  Play a recording back, checking every frame, ignores --cycles and --load-state");
+        System.out.println("  --profile N    Print the instruction mix and the N most executed addresses");
+        System.out.println("  --coverage FILE  Write every rom instruction with whether it ran, and its disassembly");
+    }
+
+    private boolean parseArgs(String[] args) {
+        for (int index = 0; index < args.length; index++) {
+            switch (args[index]) {
+                case "--cycles":
+                    cycles = Long.parseLong(args[++index]);
+                    break;
+                case "--interpreter":
+                    interpreter = Interpreter.valueOf(args[++index].toUpperCase());
+                    break;
+                case "--platform":
+                    platform = Platform.parse(args[++index]);
+                    break;
+                case "--aot-cache":
+                    aotCache = Paths.get(args[++index]);
+                    break;
+                case "--screen":
+                    printScreen = true;
+                    break;
+                case "--state":
+                    printState = true;
+                    break;
+                case "--pbm":
+                    pbmFile = new File(args[++index]);
+                    break;
+                case "--trace":
+                    traceLines = Integer.parseInt(args[++index]);
+                    break;
+                case "--trace-file":
+                    traceFile = Paths.get(args[++index]);
+                    break;
+                case "--ipf":
+                    instructionsPerFrame = Integer.parseInt(args[++index]);
+                    break;
+                case "--realtime":
+                    realtime = true;
+                    break;
+                case "--load-state":
+                    loadState = Paths.get(args[++index]);
+                    break;
+                case "--save-state":
+                    saveState = Paths.get(args[++index]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++index]);
+                    break;
+                case "--record":
+                    recordFile = Paths.get(args[++index]);
+                    break;
+                case "--replay":
+                    replayFile = Paths.get(args[++index]);
+                    break;
+                case "--profile":
+                    profileLines = Integer.parseInt(args[++index]);
+                    break;
+                case "--coverage":
+                    coverageFile = Paths.get(args[++index]);
+                    break;
+                default:
+                    if (args[index].startsWith("--") || rom != null)
+                        return false;
+                    rom = new File(args[index]);
+                    break;
+            }
+        }
+        // Only one trace can be attached
+        return rom != null && (traceLines == 0 || traceFile == null);
+    }
+
+    private void printScreen(Cpu cpu) {
+        FrameBuffer frameBuffer = cpu.getFrameBuffer();
+        StringBuilder screen = new StringBuilder();
+        for (int y = 0; y < frameBuffer.getHeight(); y++) {
+            for (int x = 0; x < frameBuffer.getWidth(); x++) {
+                screen.append(frameBuffer.isPixelOn(x, y) ? '#' : '.');
+            }
+            screen.append('\n');
+        }
+        System.out.print(screen);
+    }
+
+    private void printState(Cpu cpu) {
+        int[] v = cpu.getV();
+        StringBuilder state = new StringBuilder();
+        for (int index = 0; index < v.length; index++) {
+            state.append(String.format("V%X=%02x ", index, v[index]));
+        }
+        System.out.println(state.toString().trim());
+        System.out.println(String.format("PC=%03x I=%03x DT=%02x ST=%02x", cpu.getPC(), cpu.getI(),
+                cpu.getDelayTimer(), cpu.getSoundTimer()));
+    }
+
+    private void printTrace(TraceBuffer trace) {
+        long first = Math.max(trace.getFirst(), trace.getCount() - traceLines);
+        for (long index = first; index < trace.getCount(); index++) {
+            System.out.println(trace.format(index));
+        }
+    }
+
+    private void printProfile(Cpu cpu, Profiler profiler, int romSize) throws IOException {
+        int romEnd = Math.min(0x200 + romSize, cpu.getMemory().length);
+        if (profileLines > 0) {
+            System.out.println("Instruction mix:");
+            System.out.print(profiler.instructionMix());
+            System.out.println("Hot spots:");
+            System.out.print(profiler.hotSpots(profileLines));
+        }
+        String coverage = profiler.coverageMap(cpu.getMemory(), 0x200, romEnd);
+        if (coverageFile != null)
+            Files.writeString(coverageFile, coverage);
+        // The last line is the summary
+        String[] lines = coverage.split("\n");
+        System.out.println("Coverage: " + lines[lines.length - 1]);
+    }
+
+    /**
+     * Write the screen as a plain PBM (P1) image, 1 is black in PBM so on pixels
+     * are written as 0 to keep the usual white on black look.
+     */
+    private void writePbm(Cpu cpu) throws IOException {
+        FrameBuffer frameBuffer = cpu.getFrameBuffer();
+        try (Writer writer = new FileWriter(pbmFile)) {
+            writer.write("P1\n" + frameBuffer.getWidth() + " " + frameBuffer.getHeight() + "\n");
+            for (int y = 0; y < frameBuffer.getHeight(); y++) {
+                for (int x = 0; x < frameBuffer.getWidth(); x++) {
+                    writer.write(frameBuffer.isPixelOn(x, y) ? "0 " : "1 ");
+                }
+                writer.write("\n");
+            }
+        }
+    }
+
+    /**
+     * Run until cycles instructions have executed or the cpu stops
+     *
+     * @param cpu
+     * @param scheduler
+     * @param log       Where to record, null to not
+     * @return Instructions executed
+     */
+    private long runCycles(Cpu cpu, FrameScheduler scheduler, InputLog log) {
+        long executed = 0;
+        while (executed < cycles) {
+            int frames = scheduler.awaitFrame();
+            for (int frame = 0; frame < frames && executed < cycles; frame++) {
+                // A recording only has whole frames, so it may go a little past cycles
+                int budget = log != null ? instructionsPerFrame
+                        : (int) Math.min(cycles - executed, instructionsPerFrame);
+                int ran = scheduler.runFrame(cpu, budget);
+                executed += ran;
+                // Nobody presses keys headless, the recording holds none
+                if (log != null)
+                    log.recordFrame(0, cpu.stateHash());
+                if (stopped(cpu, ran))
+                    return executed;
+            }
+        }
+        return executed;
+    }
+
+    /**
+     * Run the frames of a recording with its input, stop at the first frame
+     * that does not come out the same
+     *
+     * @param cpu
+     * @param scheduler
+     * @param log
+     * @return Instructions executed
+     */
+    private long replay(Cpu cpu, FrameScheduler scheduler, InputLog log) {
+        long executed = 0;
+        for (int frame = 0; frame < log.getFrames();) {
+            int frames = scheduler.awaitFrame();
+            for (int due = 0; due < frames && frame < log.getFrames(); due++, frame++) {
+                cpu.setKeys(log.getKeys(frame));
+                executed += scheduler.runFrame(cpu);
+                if (cpu.stateHash() != log.getHash(frame)) {
+                    System.out.println("Replay diverged at frame " + frame);
+                    return executed;
+                }
+            }
+        }
+        System.out.println("Replay matched all " + log.getFrames() + " frames");
+        return executed;
+    }
+
+    /**
+     * @param cpu
+     * @param ran Instructions the last frame executed
+     * @return true if the cpu can not go on, after saying why
+     */
+    private boolean stopped(Cpu cpu, int ran) {
+        if (cpu.getStatus() == Cpu.Status.ERROR) {
+            System.out.println(String.format("Cpu halted at PC=%03x, call stack overflow or underflow",
+                    cpu.getPC()));
+            return true;
+        }
+        if (cpu.getStatus() == Cpu.Status.EXIT) {
+            System.out.println(String.format("Rom exited at PC=%03x", cpu.getPC()));
+            return true;
+        }
+        if (cpu.isWaitingForKey()) {
+            // Nothing can press a key for us, so a key wait ends the run.
+            System.out.println("Waiting for key press, stopping");
+            return true;
+        }
+        if (ran == 0 && !cpu.isIdle()) {
+            // Whatever stopped it, no frame after this one will get anywhere either
+            System.out.println(String.format("Cpu stopped at PC=%03x", cpu.getPC()));
+            return true;
+        }
+        return false;
+    }
+
+    private void execute() throws IOException {
+        byte[] romBytes = Files.readAllBytes(rom.toPath());
+        InputLog replayLog = null;
+        if (replayFile != null) {
+            replayLog = InputLog.read(replayFile);
+            if (!replayLog.getRomHash().equals(Rom.hash(romBytes))) {
+                System.out.println(replayFile + " was recorded with a different rom");
+                return;
+            }
+            seed = replayLog.getSeed();
+            instructionsPerFrame = replayLog.getInstructionsPerFrame();
+            platform = replayLog.getPlatform();
+        }
+        if (platform == null) {
+            platform = Platform.detect(romBytes);
+            System.out.println("Running as " + platform + ", guessed from the rom, --platform overrides it");
+        }
+        if (instructionsPerFrame == 0)
+            instructionsPerFrame = platform.getInstructionsPerFrame();
+        InputLog recordLog = null;
+        if (recordFile != null)
+            recordLog = new InputLog(seed, instructionsPerFrame, Rom.hash(romBytes), platform);
+
+        Cpu cpu = new Cpu();
+        cpu.setPlatform(platform);
+        cpu.setSeed(seed);
+        if (aotCache != null)
+            cpu.setAotCache(new AotCache(aotCache));
+        cpu.setInterpreter(interpreter);
+        cpu.loadRom(romBytes);
+        // A replay starts where its recording did, --load-state is ignored
+        if (replayLog != null && replayLog.getStartState() != null) {
+            cpu.loadState(ByteBuffer.wrap(replayLog.getStartState()));
+        } else if (replayLog == null && loadState != null) {
+            byte[] state = Files.readAllBytes(loadState);
+            cpu.loadState(ByteBuffer.wrap(state));
+            if (recordLog != null)
+                recordLog.setStartState(state);
+        }
+        TraceBuffer trace = null;
+        if (traceLines > 0) {
+            trace = new TraceBuffer(traceLines);
+            cpu.setTraceSink(trace);
+        }
+        Profiler profiler = null;
+        if (profileLines > 0 || coverageFile != null) {
+            profiler = new Profiler();
+            cpu.setProfiler(profiler);
+        }
+        TraceFile file = null;
+        if (traceFile != null) {
+            file = new TraceFile(traceFile);
+            cpu.setTraceSink(file);
+        }
+
+        FrameScheduler scheduler = new FrameScheduler(instructionsPerFrame);
+        // Turbo is the unthrottled mode, no waiting and no one to draw for
+        scheduler.setTurbo(!realtime);
+        long start = System.nanoTime();
+        long executed;
+        if (replayLog != null)
+            executed = replay(cpu, scheduler, replayLog);
+        else
+            executed = runCycles(cpu, scheduler, recordLog);
+        long elapsed = System.nanoTime() - start;
+        if (file != null) {
+            file.close();
+            System.out.println("Wrote " + file.getCount() + " instructions to " + traceFile);
+        }
+
+        System.out.println(String.format("Executed %d instructions (%d frames) in %.3f ms", executed,
+                scheduler.getFrames(), elapsed / 1e6));
+        if (interpreter == Interpreter.CACHED)
+            System.out.println("Decode cache: " + cpu.getDecodeCache());
+        if (interpreter == Interpreter.JIT || interpreter == Interpreter.AOT)
+            System.out.println("JIT: " + cpu.getJit());
+        if (interpreter == Interpreter.AOT)
+            System.out.println("AOT cache: " + cpu.getAotCache());
+        if (recordLog != null) {
+            recordLog.write(recordFile);
+            System.out.println("Recorded " + recordLog.getFrames() + " frames to " + recordFile);
+        }
+        if (saveState != null) {
+            ByteBuffer state = ByteBuffer.allocate(cpu.getStateSize());
+            cpu.saveState(state);
+            Files.write(saveState, state.array());
+        }
+        if (profiler != null)
+            printProfile(cpu, profiler, romBytes.length);
+        if (trace != null)
+            printTrace(trace);
+        if (printState)
+            printState(cpu);
+        if (printScreen)
+            printScreen(cpu);
+        if (pbmFile != null)
+            writePbm(cpu);
+    }
+
+    public static void main(String[] args) {
+        Headless headless = new Headless();
+        if (!headless.parseArgs(args)) {
+            usage();
+            System.exit(1);
+        }
+        try {
+            headless.execute();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.chip8.cpu;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import org.chip8.rom.Rom;
+
+/**
+ * Compiled roms on disk, one class file per rom named after the SHA-256 of
+ * the rom bytes. The first run of a rom pays for the translation, every run
+ * after that just loads the class.
+ */
+public class AotCache {
+
+    private final Path directory;
+    private long hits, misses;
+
+    public AotCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * ~/.chip8/aot
+     * 
+     * @return
+     */
+    public static AotCache defaultCache() {
+        return new AotCache(Paths.get(System.getProperty("user.home"), ".chip8", "aot"));
+    }
+
+    Path pathFor(byte[] rom, Platform platform) {
+        return directory.resolve(
+                Rom.hash(rom) + "-" + platform.name().toLowerCase() + "-v" + AotCompiler.VERSION + ".class");
+    }
+
+    /**
+     * Get the compiled program for a rom, translating and storing it if it is
+     * not cached yet. A cache that can not be read or written just means the
+     * rom gets translated again.
+     * 
+     * @param rom      Rom bytes, used for the key
+     * @param memory   Memory with the rom loaded at 0x200
+     * @param platform Decides what some opcodes do, so it is part of the key
+     * @return
+     */
+    AotProgram load(byte[] rom, int[] memory, Platform platform) {
+        Path path = pathFor(rom, platform);
+        if (Files.isRegularFile(path)) {
+            try {
+                AotProgram program = AotCompiler.define(Files.readAllBytes(path));
+                hits++;
+                return program;
+            } catch (IOException | IllegalStateException e) {
+                System.out.println("Ignoring unreadable compiled rom " + path);
+            }
+        }
+        misses++;
+        byte[] classFile = AotCompiler.translate(memory, 0x200 + rom.length, platform);
+        try {
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, "rom", ".tmp");
+            Files.write(temporary, classFile);
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Could not store compiled rom: " + e.getMessage());
+        }
+        return AotCompiler.define(classFile);
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d misses=%d directory=%s", hits, misses, directory);
+    }
+}
@@ -0,0 +1,224 @@
+package org.chip8.cpu;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Translates all the code of a rom that can be proven reachable from 0x200
+ * into a single class ahead of time.
+ *
+ * The class has one execute(cpu, v, pc) method that switches on pc to the
+ * block starting there. Blocks are exactly the ones the JIT would build
+ * (see BlockCompiler), they just all exist before the rom starts. Code behind
+ * a computed jump (BNNN) cannot be found this way and is left to the JIT.
+ */
+final class AotCompiler {
+
+    /**
+     * Goes up whenever the generated code changes, so old cached classes are
+     * not picked up
+     */
+    static final int VERSION = 1;
+
+    private static final String CLASS_NAME = "org/chip8/cpu/AotRom";
+
+    /**
+     * Methods can not be longer than 64K, leave room for the switch
+     */
+    private static final int MAX_CODE = 56 * 1024;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private AotCompiler() {
+    }
+
+    /**
+     * Generate the class file for a rom already loaded into memory
+     *
+     * @param memory
+     * @param romEnd   First address after the rom
+     * @param platform
+     * @return Class file bytes
+     */
+    static byte[] translate(int[] memory, int romEnd, Platform platform) {
+        BytecodeWriter writer = new BytecodeWriter(CLASS_NAME, "org/chip8/cpu/AotProgram");
+
+        List<BlockCompiler.Block> blocks = new ArrayList<>();
+        List<BytecodeWriter.Code> bodies = new ArrayList<>();
+        int size = 0;
+        for (BlockCompiler.Block block : findBlocks(memory, romEnd, platform)) {
+            BytecodeWriter.Code body = writer.new Code();
+            // pc is dead once the switch has picked a block, so V0 reuses its slot
+            BlockCompiler.emit(body, block);
+            if (size + body.size() + 8 > MAX_CODE)
+                break;
+            size += body.size() + 8;
+            blocks.add(block);
+            bodies.add(body);
+        }
+
+        int[] keys = new int[blocks.size()];
+        int[] targets = new int[blocks.size()];
+        StringBuilder table = new StringBuilder();
+        BytecodeWriter.Code code = writer.new Code();
+        // iload pc is 2 bytes, then the switch, then the default case
+        int position = 2 + code.lookupSwitchSize(2, keys.length);
+        int defaultTarget = position;
+        position += 2;
+        for (int index = 0; index < blocks.size(); index++) {
+            keys[index] = blocks.get(index).start;
+            targets[index] = position;
+            position += bodies.get(index).size();
+            table.append((char) blocks.get(index).start).append((char) blocks.get(index).length());
+        }
+
+        code.iload(3).lookupSwitch(keys, targets, defaultTarget);
+        code.target();
+        code.push(-1).op(BytecodeWriter.IRETURN);
+        for (BytecodeWriter.Code body : bodies) {
+            code.target();
+            code.append(body);
+        }
+        writer.addMethod(BytecodeWriter.ACC_PUBLIC, "execute", "(Lorg/chip8/cpu/Cpu;[II)I", code, 6, 20);
+
+        BytecodeWriter.Code blocksMethod = writer.new Code();
+        blocksMethod.op(BytecodeWriter.LDC_W).u2(writer.string(table.toString())).op(BytecodeWriter.ARETURN);
+        writer.addMethod(BytecodeWriter.ACC_PUBLIC, "blocks", "()Ljava/lang/String;", blocksMethod, 1, 1);
+
+        return writer.toByteArray();
+    }
+
+    /**
+     * Define a class made by translate()
+     *
+     * @param classFile
+     * @return
+     */
+    static AotProgram define(byte[] classFile) {
+        try {
+            MethodHandles.Lookup hidden = LOOKUP.defineHiddenClass(classFile, true);
+            return (AotProgram) hidden.findConstructor(hidden.lookupClass(), MethodType.methodType(void.class))
+                    .invoke();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not define compiled rom", e);
+        }
+    }
+
+    /**
+     * Walk the rom from 0x200 and split what is reachable into blocks.
+     * A block starts wherever the interpreter could hand control back: jump
+     * and call targets, both sides of a skip, return addresses and the
+     * instruction after anything that is not compiled.
+     *
+     * @param memory
+     * @param romEnd
+     * @param platform
+     * @return Blocks in address order
+     */
+    static List<BlockCompiler.Block> findBlocks(int[] memory, int romEnd, Platform platform) {
+        int end = Math.min(romEnd, memory.length - 1);
+        BitSet leaders = new BitSet(memory.length);
+        BitSet reachable = walk(memory, romEnd, platform, leaders);
+
+        List<BlockCompiler.Block> blocks = new ArrayList<>();
+        for (int start = leaders.nextSetBit(0); start >= 0; start = leaders.nextSetBit(start + 1)) {
+            if (start >= end || !reachable.get(start))
+                continue;
+            BlockCompiler.Block block = BlockCompiler.scan(memory, start, platform);
+            if (block.length() == 0)
+                continue;
+            blocks.add(block);
+            // Long runs get split, the next piece needs its own entry
+            if (!block.terminated && block.length() == BlockCompiler.MAX_BLOCK)
+                leaders.set(block.end());
+        }
+        return blocks;
+    }
+
+    /**
+     * Addresses of every instruction reachable from 0x200, following jumps,
+     * calls and both sides of skips but not BNNN
+     *
+     * @param memory
+     * @param romEnd
+     * @param platform
+     * @return
+     */
+    static BitSet findReachable(int[] memory, int romEnd, Platform platform) {
+        return walk(memory, romEnd, platform, new BitSet(memory.length));
+    }
+
+    /**
+     * @param leaders Gets every address a block has to start at
+     * @return Reachable instruction addresses
+     */
+    private static BitSet walk(int[] memory, int romEnd, Platform platform, BitSet leaders) {
+        int end = Math.min(romEnd, memory.length - 1);
+        BitSet reachable = new BitSet(memory.length);
+        // Each instruction is expanded once and pushes at most two addresses
+        int[] work = new int[memory.length * 2 + 1];
+        int pending = 0;
+
+        work[pending++] = 0x200;
+        leaders.set(0x200);
+        while (pending > 0) {
+            int pc = work[--pending];
+            if (pc < 0x200 || pc >= end || reachable.get(pc))
+                continue;
+            reachable.set(pc);
+            int opcode = ((memory[pc] & 0xFF) << 8) | (memory[pc + 1] & 0xFF);
+            int nnn = opcode & 0xFFF;
+            boolean continues = BlockCompiler.isStraightLine(opcode);
+            // XO-Chip's F000 NNNN is four bytes, skips jump over all of it
+            int next = pc + (platform == Platform.XOCHIP && opcode == 0xF000 ? 4 : 2);
+            int skipped = pc + 4;
+            if (platform == Platform.XOCHIP && pc + 3 < memory.length
+                    && ((memory[pc + 2] & 0xFF) << 8 | (memory[pc + 3] & 0xFF)) == 0xF000)
+                skipped = pc + 6;
+            // XO-Chip's 5XY2/5XY3 store or load registers, they are not skips
+            boolean registerRange = platform == Platform.XOCHIP && (opcode >> 12) == 0x5
+                    && ((opcode & 0xF) == 0x2 || (opcode & 0xF) == 0x3);
+            switch (opcode >> 12) {
+                case 0x0:
+                    if (opcode != 0x00EE) {
+                        work[pending++] = pc + 2;
+                        leaders.set(pc + 2);
+                    }
+                    break;
+                case 0x1:
+                    work[pending++] = nnn;
+                    leaders.set(nnn);
+                    break;
+                case 0x2:
+                    work[pending++] = nnn;
+                    work[pending++] = pc + 2;
+                    leaders.set(nnn);
+                    leaders.set(pc + 2);
+                    break;
+                case 0x3:
+                case 0x4:
+                case 0x5:
+                case 0x9:
+                    work[pending++] = pc + 2;
+                    leaders.set(pc + 2);
+                    if (!registerRange) {
+                        work[pending++] = skipped;
+                        leaders.set(skipped);
+                    }
+                    break;
+                case 0xB:
+                    // Computed jump, where it lands is anyone's guess
+                    break;
+                default:
+                    work[pending++] = next;
+                    if (!continues)
+                        leaders.set(next);
+                    break;
+            }
+        }
+        return reachable;
+    }
+}
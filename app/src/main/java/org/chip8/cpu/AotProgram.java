@@ -0,0 +1,25 @@
+package org.chip8.cpu;
+
+/**
+ * A whole rom compiled ahead of time, one block per entry point.
+ */
+interface AotProgram {
+
+    /**
+     * Run the block starting at pc.
+     *
+     * @param cpu
+     * @param v   The V registers of cpu
+     * @param pc  Start of the block
+     * @return Same as CompiledBlock.execute(), or -1 if there is no block at pc
+     */
+    int execute(Cpu cpu, int[] v, int pc);
+
+    /**
+     * The compiled blocks, two chars each: start address then length in
+     * instructions.
+     *
+     * @return
+     */
+    String blocks();
+}
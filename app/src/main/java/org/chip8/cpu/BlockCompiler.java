@@ -0,0 +1,353 @@
+package org.chip8.cpu;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+
+/**
+ * Turns basic blocks of Chip8 code into hidden classes.
+ *
+ * A block starts at some address and runs through register, I and arithmetic
+ * instructions. It ends with a jump or a skip, or just before anything the
+ * compiler does not handle (calls, draws, timers, keys, memory stores...),
+ * which the interpreter then runs. V registers live in locals for the whole
+ * block and are written back once at the end. Skips are computed without
+ * branches, so the generated code never needs stack map frames.
+ */
+final class BlockCompiler {
+
+    /**
+     * Longest block, in instructions
+     */
+    static final int MAX_BLOCK = 64;
+
+    private static final String CPU = "org/chip8/cpu/Cpu";
+
+    // Locals: this, cpu, v, then V0-VF, then I
+    private static final int CPU_LOCAL = 1, V_LOCAL = 2, FIRST_REGISTER_LOCAL = 3, I_LOCAL = 19;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private BlockCompiler() {
+    }
+
+    /**
+     * The instructions found at some address
+     */
+    static class Block {
+        final int start;
+        final int[] opcodes;
+        /**
+         * True if the last opcode is a jump or skip that decides the next PC
+         */
+        final boolean terminated;
+        final Platform platform;
+
+        Block(int start, int[] opcodes, boolean terminated, Platform platform) {
+            this.start = start;
+            this.opcodes = opcodes;
+            this.terminated = terminated;
+            this.platform = platform;
+        }
+
+        int length() {
+            return opcodes.length;
+        }
+
+        /**
+         * First address after the block
+         */
+        int end() {
+            return start + opcodes.length * 2;
+        }
+    }
+
+    /**
+     * Can this opcode go in the middle of a block
+     *
+     * @param opcode
+     * @return
+     */
+    static boolean isStraightLine(int opcode) {
+        switch (opcode >> 12) {
+            case 0x6:
+            case 0x7:
+            case 0xA:
+                return true;
+            case 0x8:
+                int n = opcode & 0xF;
+                return n <= 0x7 || n == 0xE;
+            case 0xF:
+                return (opcode & 0xFF) == 0x1E;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Does this opcode end a block by choosing the next PC itself.
+     * XO-Chip skips are left to the interpreter, how far they go depends on
+     * the next instruction, which a block does not cover.
+     *
+     * @param opcode
+     * @param platform
+     * @return
+     */
+    static boolean isTerminator(int opcode, Platform platform) {
+        switch (opcode >> 12) {
+            case 0x1:
+                return true;
+            case 0x3:
+            case 0x4:
+            case 0x5:
+            case 0x9:
+                return platform != Platform.XOCHIP;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Find the block starting at start
+     *
+     * @param memory
+     * @param start
+     * @param platform
+     * @return The block, empty if the first instruction cannot be compiled
+     */
+    static Block scan(int[] memory, int start, Platform platform) {
+        int[] opcodes = new int[MAX_BLOCK];
+        int count = 0;
+        boolean terminated = false;
+        for (int pc = start; count < MAX_BLOCK && pc + 1 < memory.length; pc += 2) {
+            int opcode = ((memory[pc] & 0xFF) << 8) | (memory[pc + 1] & 0xFF);
+            if (isTerminator(opcode, platform)) {
+                opcodes[count++] = opcode;
+                terminated = true;
+                break;
+            }
+            if (!isStraightLine(opcode))
+                break;
+            opcodes[count++] = opcode;
+        }
+        return new Block(start, Arrays.copyOf(opcodes, count), terminated, platform);
+    }
+
+    /**
+     * Compile a block into a hidden class
+     *
+     * @param block A block with at least one instruction
+     * @return
+     */
+    static CompiledBlock compile(Block block) {
+        BytecodeWriter writer = new BytecodeWriter("org/chip8/cpu/Block", "org/chip8/cpu/CompiledBlock");
+        BytecodeWriter.Code code = writer.new Code();
+        emit(code, block);
+        writer.addMethod(BytecodeWriter.ACC_PUBLIC, "execute", "(L" + CPU + ";[I)I", code, 6, I_LOCAL + 1);
+        try {
+            MethodHandles.Lookup hidden = LOOKUP.defineHiddenClass(writer.toByteArray(), true);
+            return (CompiledBlock) hidden.findConstructor(hidden.lookupClass(), MethodType.methodType(void.class))
+                    .invoke();
+        } catch (Throwable e) {
+            throw new IllegalStateException(String.format("Could not compile block at $%03x", block.start), e);
+        }
+    }
+
+    private static int local(int register) {
+        return FIRST_REGISTER_LOCAL + register;
+    }
+
+    /**
+     * Emit the body of execute(cpu, v) for a block
+     *
+     * @param code
+     * @param block
+     */
+    static void emit(BytecodeWriter.Code code, Block block) {
+        int read = 0, written = 0;
+        boolean usesI = false;
+        for (int opcode : block.opcodes) {
+            int x = (opcode >> 8) & 0xF, y = (opcode >> 4) & 0xF;
+            switch (opcode >> 12) {
+                case 0x3:
+                case 0x4:
+                    read |= 1 << x;
+                    break;
+                case 0x5:
+                case 0x9:
+                    read |= 1 << x | 1 << y;
+                    break;
+                case 0x6:
+                    written |= 1 << x;
+                    break;
+                case 0x7:
+                    read |= 1 << x;
+                    written |= 1 << x;
+                    break;
+                case 0x8:
+                    read |= 1 << x | 1 << y;
+                    written |= 1 << x | 1 << 0xF;
+                    break;
+                case 0xA:
+                    usesI = true;
+                    break;
+                case 0xF:
+                    read |= 1 << x;
+                    usesI = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        // Load everything the block touches, 8XY0-8XY3 count as writing VF
+        // without doing it, so the write back must not see an unassigned local.
+        int used = read | written;
+        for (int register = 0; register < 16; register++) {
+            if ((used & (1 << register)) != 0) {
+                code.aload(V_LOCAL).push(register).op(BytecodeWriter.IALOAD).istore(local(register));
+            }
+        }
+        if (usesI)
+            code.aload(CPU_LOCAL).invokeVirtual(CPU, "getI", "()I").istore(I_LOCAL);
+
+        for (int opcode : block.opcodes) {
+            if (!isTerminator(opcode, block.platform))
+                emitStraightLine(code, opcode, block.platform);
+        }
+
+        for (int register = 0; register < 16; register++) {
+            if ((written & (1 << register)) != 0) {
+                code.aload(V_LOCAL).push(register).iload(local(register)).op(BytecodeWriter.IASTORE);
+            }
+        }
+        if (usesI)
+            code.aload(CPU_LOCAL).iload(I_LOCAL).invokeVirtual(CPU, "setI", "(I)V");
+
+        emitExit(code, block, block.end());
+    }
+
+    private static void emitStraightLine(BytecodeWriter.Code code, int opcode, Platform platform) {
+        int x = (opcode >> 8) & 0xF, y = (opcode >> 4) & 0xF;
+        int nn = opcode & 0xFF, nnn = opcode & 0xFFF;
+        int vx = local(x), vy = local(y), vf = local(0xF);
+        switch (opcode >> 12) {
+            case 0x6:
+                code.push(nn).istore(vx);
+                break;
+            case 0x7:
+                code.iload(vx).push(nn).op(BytecodeWriter.IADD).push(0xFF).op(BytecodeWriter.IAND).istore(vx);
+                break;
+            case 0xA:
+                code.push(nnn).istore(I_LOCAL);
+                break;
+            case 0xF:
+                // FX1E
+                code.iload(I_LOCAL).iload(vx).op(BytecodeWriter.IADD).istore(I_LOCAL);
+                break;
+            default:
+                // XO-Chip shifts VY into VX
+                int shifted = platform == Platform.XOCHIP ? vy : vx;
+                emit0x8(code, opcode & 0xF, vx, vy, vf, shifted);
+                break;
+        }
+    }
+
+    /**
+     * Same results as the interpreter, flags computed without branches.
+     * Registers always hold 0-255, which the carry tricks rely on.
+     */
+    private static void emit0x8(BytecodeWriter.Code code, int n, int vx, int vy, int vf, int shifted) {
+        switch (n) {
+            case 0x0:
+                code.iload(vy).istore(vx);
+                break;
+            case 0x1:
+                code.iload(vx).iload(vy).op(BytecodeWriter.IOR).istore(vx);
+                break;
+            case 0x2:
+                code.iload(vx).iload(vy).op(BytecodeWriter.IAND).istore(vx);
+                break;
+            case 0x3:
+                code.iload(vx).iload(vy).op(BytecodeWriter.IXOR).istore(vx);
+                break;
+            case 0x4:
+                // sum on the stack, carry is sum >>> 8
+                code.iload(vx).iload(vy).op(BytecodeWriter.IADD).op(BytecodeWriter.DUP);
+                code.push(0xFF).op(BytecodeWriter.IAND).istore(vx);
+                code.push(8).op(BytecodeWriter.IUSHR).istore(vf);
+                break;
+            case 0x5:
+                emitSubtract(code, vx, vy, vx, vf);
+                break;
+            case 0x6:
+                code.iload(shifted).op(BytecodeWriter.DUP).push(1).op(BytecodeWriter.ISHR).istore(vx);
+                code.push(1).op(BytecodeWriter.IAND).istore(vf);
+                break;
+            case 0x7:
+                emitSubtract(code, vy, vx, vx, vf);
+                break;
+            default:
+                // 0xE
+                code.iload(shifted).op(BytecodeWriter.DUP).push(1).op(BytecodeWriter.ISHL).push(0xFF)
+                        .op(BytecodeWriter.IAND).istore(vx);
+                code.push(7).op(BytecodeWriter.ISHR).istore(vf);
+                break;
+        }
+    }
+
+    /**
+     * target = (a - b) & 0xFF, vf = a >= b
+     */
+    private static void emitSubtract(BytecodeWriter.Code code, int a, int b, int target, int vf) {
+        code.iload(a).iload(b).op(BytecodeWriter.ISUB).op(BytecodeWriter.DUP);
+        code.push(0xFF).op(BytecodeWriter.IAND).istore(target);
+        // Negative difference means a borrow
+        code.push(31).op(BytecodeWriter.IUSHR).push(1).op(BytecodeWriter.IXOR).istore(vf);
+    }
+
+    /**
+     * Push (count << 16 | next PC) and return it
+     *
+     * @param code
+     * @param block
+     * @param fallThrough Address after the last instruction
+     */
+    private static void emitExit(BytecodeWriter.Code code, Block block, int fallThrough) {
+        int count = block.length() << 16;
+        int last = block.opcodes[block.length() - 1];
+        if (!block.terminated) {
+            code.push(count | fallThrough).op(BytecodeWriter.IRETURN);
+            return;
+        }
+        int x = (last >> 8) & 0xF, y = (last >> 4) & 0xF;
+        switch (last >> 12) {
+            case 0x1:
+                code.push(count | (last & 0xFFF));
+                break;
+            case 0x3:
+            case 0x4:
+                code.iload(local(x)).push(last & 0xFF);
+                emitSkip(code, count | fallThrough, (last >> 12) == 0x4);
+                break;
+            default:
+                // 0x5 and 0x9
+                code.iload(local(x)).iload(local(y));
+                emitSkip(code, count | fallThrough, (last >> 12) == 0x9);
+                break;
+        }
+        code.op(BytecodeWriter.IRETURN);
+    }
+
+    /**
+     * With two values on the stack, push base + 2 if they are equal (or not
+     * equal when inverted) and base otherwise.
+     */
+    private static void emitSkip(BytecodeWriter.Code code, int base, boolean inverted) {
+        // ((a ^ b) - 1) >>> 31 is 1 when a == b, both being 0-255
+        code.op(BytecodeWriter.IXOR).push(1).op(BytecodeWriter.ISUB).push(31).op(BytecodeWriter.IUSHR);
+        if (inverted)
+            code.push(1).op(BytecodeWriter.IXOR);
+        code.push(1).op(BytecodeWriter.ISHL).push(base).op(BytecodeWriter.IADD);
+    }
+}
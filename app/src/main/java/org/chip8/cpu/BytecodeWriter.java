@@ -0,0 +1,345 @@
+package org.chip8.cpu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Just enough of a class file writer to build the classes the JIT and AOT
+ * compilers need: one class, a default constructor and methods made of plain
+ * bytecode. Branch targets may only be reached with the method's starting
+ * locals and an empty stack, which is all a lookupswitch over blocks needs.
+ */
+class BytecodeWriter {
+
+    static final int ACC_PUBLIC = 0x0001, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+    // The handful of opcodes the compilers use
+    static final int ICONST_0 = 0x03, ICONST_1 = 0x04, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13,
+            ILOAD = 0x15, ALOAD = 0x19, IALOAD = 0x2E, ISTORE = 0x36, IASTORE = 0x4F, DUP = 0x59,
+            IADD = 0x60, ISUB = 0x64, ISHL = 0x78, ISHR = 0x7A, IUSHR = 0x7C, IAND = 0x7E,
+            IOR = 0x80, IXOR = 0x82, LOOKUPSWITCH = 0xAB, IRETURN = 0xAC, ARETURN = 0xB0, RETURN = 0xB1,
+            INVOKEVIRTUAL = 0xB6, INVOKESPECIAL = 0xB7;
+
+    private static final int CLASS_VERSION = 61;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final HashMap<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final List<byte[]> methods = new ArrayList<>();
+    private final int thisClass, superClass, codeName, stackMapName;
+    private final int[] interfaces;
+
+    /**
+     * @param name       Internal name, e.g. org/chip8/cpu/Block
+     * @param interfaces Internal names of implemented interfaces
+     */
+    BytecodeWriter(String name, String... interfaces) {
+        thisClass = classRef(name);
+        superClass = classRef("java/lang/Object");
+        codeName = utf8("Code");
+        stackMapName = utf8("StackMapTable");
+        this.interfaces = new int[interfaces.length];
+        for (int index = 0; index < interfaces.length; index++) {
+            this.interfaces[index] = classRef(interfaces[index]);
+        }
+        addDefaultConstructor();
+    }
+
+    private int constant(String key, int slots, PoolEntry entry) {
+        Integer index = poolIndex.get(key);
+        if (index != null)
+            return index;
+        try {
+            entry.write(poolOut);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        poolIndex.put(key, poolCount);
+        poolCount += slots;
+        return poolCount - slots;
+    }
+
+    private interface PoolEntry {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    int utf8(String value) {
+        return constant("U" + value, 1, out -> {
+            out.writeByte(1);
+            out.writeUTF(value);
+        });
+    }
+
+    int integer(int value) {
+        return constant("I" + value, 1, out -> {
+            out.writeByte(3);
+            out.writeInt(value);
+        });
+    }
+
+    int string(String value) {
+        int valueIndex = utf8(value);
+        return constant("S" + value, 1, out -> {
+            out.writeByte(8);
+            out.writeShort(valueIndex);
+        });
+    }
+
+    int classRef(String name) {
+        int nameIndex = utf8(name);
+        return constant("C" + name, 1, out -> {
+            out.writeByte(7);
+            out.writeShort(nameIndex);
+        });
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name), descriptorIndex = utf8(descriptor);
+        int nameAndType = constant("N" + name + descriptor, 1, out -> {
+            out.writeByte(12);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        });
+        return constant("M" + owner + "." + name + descriptor, 1, out -> {
+            out.writeByte(10);
+            out.writeShort(ownerIndex);
+            out.writeShort(nameAndType);
+        });
+    }
+
+    private void addDefaultConstructor() {
+        Code code = new Code();
+        code.op(ALOAD).u1(0);
+        code.op(INVOKESPECIAL).u2(methodRef("java/lang/Object", "<init>", "()V"));
+        code.op(RETURN);
+        addMethod(ACC_PUBLIC, "<init>", "()V", code, 1, 1);
+    }
+
+    /**
+     * Add a method made of the given code
+     *
+     * @param access
+     * @param name
+     * @param descriptor
+     * @param code
+     * @param maxStack
+     * @param maxLocals
+     */
+    void addMethod(int access, String name, String descriptor, Code code, int maxStack, int maxLocals) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);
+            byte[] body = code.toByteArray();
+            byte[] stackMap = code.stackMap();
+            out.writeShort(codeName);
+            out.writeInt(2 + 2 + 4 + body.length + 2 + 2 + (stackMap.length > 0 ? 6 + stackMap.length : 0));
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            // No exception table
+            out.writeShort(0);
+            if (stackMap.length > 0) {
+                out.writeShort(1);
+                out.writeShort(stackMapName);
+                out.writeInt(stackMap.length);
+                out.write(stackMap);
+            } else {
+                out.writeShort(0);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            out.writeShort(poolCount);
+            out.write(pool.toByteArray());
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int index : interfaces) {
+                out.writeShort(index);
+            }
+            // No fields
+            out.writeShort(0);
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            // No class attributes
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The body of a method
+     */
+    class Code {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final TreeSet<Integer> branchTargets = new TreeSet<>();
+
+        Code op(int opcode) {
+            bytes.write(opcode);
+            return this;
+        }
+
+        Code u1(int value) {
+            bytes.write(value);
+            return this;
+        }
+
+        Code u2(int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+            return this;
+        }
+
+        Code iload(int local) {
+            return op(ILOAD).u1(local);
+        }
+
+        Code istore(int local) {
+            return op(ISTORE).u1(local);
+        }
+
+        Code aload(int local) {
+            return op(ALOAD).u1(local);
+        }
+
+        /**
+         * Push an int constant using the shortest form
+         *
+         * @param value
+         * @return
+         */
+        Code push(int value) {
+            if (value >= -1 && value <= 5)
+                return op(ICONST_0 + value);
+            if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+                return op(BIPUSH).u1(value);
+            if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+                return op(SIPUSH).u2(value);
+            return op(LDC_W).u2(integer(value));
+        }
+
+        Code u4(int value) {
+            return u2(value >>> 16).u2(value);
+        }
+
+        /**
+         * Copy another piece of code onto the end of this one. It must not contain
+         * branches, their offsets would be wrong here.
+         *
+         * @param other
+         * @return
+         */
+        Code append(Code other) {
+            byte[] otherBytes = other.toByteArray();
+            bytes.write(otherBytes, 0, otherBytes.length);
+            return this;
+        }
+
+        /**
+         * Mark the current position as somewhere a branch lands
+         *
+         * @return The current position
+         */
+        int target() {
+            branchTargets.add(bytes.size());
+            return bytes.size();
+        }
+
+        /**
+         * Emit a lookupswitch on the int at the top of the stack.
+         *
+         * @param keys          Sorted keys
+         * @param targets       Absolute position of each key's code
+         * @param defaultTarget Absolute position of the default code
+         * @return
+         */
+        Code lookupSwitch(int[] keys, int[] targets, int defaultTarget) {
+            int start = bytes.size();
+            op(LOOKUPSWITCH);
+            while (bytes.size() % 4 != 0) {
+                u1(0);
+            }
+            u4(defaultTarget - start);
+            u4(keys.length);
+            for (int index = 0; index < keys.length; index++) {
+                u4(keys[index]);
+                u4(targets[index] - start);
+            }
+            return this;
+        }
+
+        /**
+         * Size of a lookupswitch with n keys emitted at position
+         */
+        int lookupSwitchSize(int position, int n) {
+            int padding = 3 - position % 4;
+            return 1 + padding + 8 + 8 * n;
+        }
+
+        /**
+         * A same_frame entry for every branch target
+         */
+        byte[] stackMap() {
+            if (branchTargets.isEmpty())
+                return new byte[0];
+            ByteArrayOutputStream map = new ByteArrayOutputStream();
+            map.write(branchTargets.size() >> 8);
+            map.write(branchTargets.size());
+            int previous = -1;
+            for (int offset : branchTargets) {
+                int delta = offset - previous - 1;
+                if (delta < 64) {
+                    map.write(delta);
+                } else {
+                    // same_frame_extended
+                    map.write(251);
+                    map.write(delta >> 8);
+                    map.write(delta);
+                }
+                previous = offset;
+            }
+            return map.toByteArray();
+        }
+
+        Code invokeVirtual(String owner, String name, String descriptor) {
+            return op(INVOKEVIRTUAL).u2(methodRef(owner, name, descriptor));
+        }
+
+        int size() {
+            return bytes.size();
+        }
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.chip8.cpu;
+
+/**
+ * A run of Chip8 instructions compiled to JVM bytecode.
+ */
+interface CompiledBlock {
+
+    /**
+     * Run the whole block.
+     *
+     * @param cpu
+     * @param v   The V registers of cpu
+     * @return The next PC in the low 16 bits and the number of instructions
+     *         that ran in the high 16 bits
+     */
+    int execute(Cpu cpu, int[] v);
+}
@@ -1,26 +1,51 @@
 package org.chip8.cpu;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.LinkedList;
-import java.util.Stack;
-
-import javax.tools.Tool;
-
-import java.awt.Color;
-import java.awt.Toolkit;
-import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+import org.chip8.input.Keypad;
+import org.chip8.jfr.ClearScreenEvent;
+import org.chip8.jfr.DrawEvent;
+import org.chip8.jfr.Jfr;
+import org.chip8.jfr.KeyWaitEvent;
+import org.chip8.jfr.RomLoadEvent;
+import org.chip8.jfr.TimerUnderflowEvent;
+import org.chip8.trace.Profiler;
+import org.chip8.trace.TraceSink;
 
 public class Cpu {
 
-    enum Status {
+    public enum Status {
         ERROR,
-        SUCCESS
+        SUCCESS,
+        /**
+         * The rom asked to stop (Super-Chip 00FD)
+         */
+        EXIT
     }
 
+    /**
+     * Nesting depth of the call stack, same as the original interpreter
+     */
+    static final int STACK_DEPTH = 16;
+
+    /**
+     * Save states start with "C8SS" and a version, bump it when the layout
+     * changes
+     */
+    private static final int STATE_MAGIC = 0x43385353;
+    /**
+     * 2: platform, memory is as big as the platform's
+     * 3: Super-Chip and XO-Chip screens, flags and audio
+     */
+    private static final short STATE_VERSION = 3;
+
+    /**
+     * Bytes in the biggest save state, an XO-Chip one
+     */
+    public static final int MAX_STATE_SIZE = stateSize(Platform.XOCHIP);
+
     /**
      * 1-F (16) Variables
      * F is the carry flag
@@ -58,73 +83,208 @@ public class Cpu {
      * it will determined weather pixel (x,y) is on or off
      * 
      */
-    private int[][] frameBuffer;
-    private int PIXEL_ON = 0xFFFFFF;
-    private int PIXEL_OFF = 0x000000;
+    private FrameBuffer frameBuffer;
 
-    private String opcodeString;
     private boolean pause = false;
     private int[] memory;
-    private boolean debug = false;
-    private Stack<Integer> stack;
-    private int keyPressed = -1;
-    private LinkedList<String> debugText;
+    /**
+     * Return addresses, sp is the number in use. Calling with a full stack or
+     * returning with an empty one halts the cpu with Status.ERROR.
+     */
+    private final int[] stack = new int[STACK_DEPTH];
+    private int sp;
+    private Status status = Status.SUCCESS;
+
+    /**
+     * xorshift state for CXNN, never 0
+     */
+    private int random;
+    /**
+     * Keys held this frame, bit n for key n
+     */
+    private int keys;
     private boolean keyboardPoll = false;
+    /**
+     * Register FX0A is waiting to put a key in
+     */
+    private int waitRegister;
+    /**
+     * The FX0A wait being recorded, if key wait events are on
+     */
+    private KeyWaitEvent keyWaitEvent;
+    /**
+     * Spinning in a delay timer loop, nothing can change until the timers tick
+     */
+    private boolean idle = false;
+    private Interpreter interpreter = Interpreter.SWITCH;
+    private Platform platform = Platform.CHIP8;
+    /**
+     * DispatchTable.forPlatform(platform)
+     */
+    private Instruction[] dispatchTable;
+    /**
+     * Super-Chip's RPL user flags, FX75 and FX85. They outlive the rom.
+     */
+    private final int[] flags = new int[16];
+    /**
+     * XO-Chip sound, kept so states are complete, the beeper plays nothing
+     * different
+     */
+    private final int[] audioPattern = new int[16];
+    private int pitch = DEFAULT_PITCH;
+    private static final int DEFAULT_PITCH = 64;
+    private TraceSink trace;
+    private Profiler profiler;
+    private DecodeCache decodeCache;
+    private Jit jit;
+    private AotCache aotCache;
+    private byte[] rom;
 
-    private BufferedImage gameScreen;
+    /**
+     * Called when the sound timer runs out. The core itself knows nothing
+     * about audio, so whoever hosts it decides what a beep is.
+     */
+    private Runnable beeper = () -> {
+    };
 
-    public void setDebug(boolean debug) {
-        this.debug = debug;
+    public Cpu() {
+        v = new int[16];
+        frameBuffer = new FrameBuffer();
+        memory = new int[platform.getMemorySize()];
+        dispatchTable = DispatchTable.forPlatform(platform);
+        decodeCache = new DecodeCache(memory.length, dispatchTable);
+        jit = new Jit(memory.length, platform);
+        setSeed(System.nanoTime());
     }
 
-    public Cpu(BufferedImage gameScreen) {
-        v = new int[16];
-        frameBuffer = new int[64][32];
-        this.gameScreen = gameScreen;
-        stack = new Stack<>();
-        updateGameScreen();
+    /**
+     * Choose the machine to emulate, before loading a rom. Memory, the
+     * screen and anything decoded or compiled start over.
+     * 
+     * @param platform
+     */
+    public void setPlatform(Platform platform) {
+        if (platform == this.platform)
+            return;
+        this.platform = platform;
+        memory = new int[platform.getMemorySize()];
+        dispatchTable = DispatchTable.forPlatform(platform);
+        decodeCache = new DecodeCache(memory.length, dispatchTable);
+        jit = new Jit(memory.length, platform);
+        frameBuffer.reset();
+        rom = null;
+    }
+
+    public Platform getPlatform() {
+        return platform;
+    }
+
+    /**
+     * Seed the random numbers CXNN gives, the same seed gives the same numbers
+     * 
+     * @param seed
+     */
+    public void setSeed(long seed) {
+        random = (int) (seed ^ (seed >>> 32));
+        if (random == 0)
+            random = 0x9E3779B9;
+    }
+
+    /**
+     * Next random byte, xorshift32 so nothing gets allocated
+     * 
+     * @return 0-255
+     */
+    private int nextRandom() {
+        random ^= random << 13;
+        random ^= random >>> 17;
+        random ^= random << 5;
+        return random >>> 24;
+    }
+
+    /**
+     * Stop executing, PC is left on the instruction that failed
+     */
+    private void halt() {
+        PC -= 2;
+        status = Status.ERROR;
     }
 
+    /**
+     * Count both timers down by one, call this at 60hz. Nothing in the cpu
+     * calls it, whoever runs the cpu owns the clock (see FrameScheduler).
+     */
     public void handleTimers() {
+        idle = false;
         if (soundTimer > 0) {
             soundTimer--;
             if (soundTimer == 0) {
                 beep();
+                timerUnderflow("sound");
             }
         }
         if (delayTimer > 0) {
             delayTimer--;
+            if (delayTimer == 0)
+                timerUnderflow("delay");
         }
 
     }
 
-    public void attachDebugText(LinkedList<String> debugText) {
-        this.debugText = debugText;
+    private void timerUnderflow(String timer) {
+        if (!Jfr.isActive())
+            return;
+        TimerUnderflowEvent event = new TimerUnderflowEvent();
+        if (event.isEnabled()) {
+            event.timer = timer;
+            event.commit();
+        }
     }
 
     /**
-     * Prints debug text to screen
-     * $PC $opcode ?faluire
+     * Start recording every instruction before it runs, null to stop.
+     * With no sink attached nothing is recorded and nothing is formatted.
      * 
-     * @param opcode
-     * @param status
+     * @param trace
      */
-    private void printDebug(String opcode, String description) {
-        if (!debug)
-            return;
-        String programCounter = String.format("%02x", PC);
-        debugText.add(programCounter + " " + opcode + " " + description);
+    public void setTraceSink(TraceSink trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * The keys held down this frame, see Keypad.poll(). Finishes an FX0A wait,
+     * with a key that just went down if there is one.
+     * 
+     * @param keys Bit n for key n
+     */
+    public void setKeys(int keys) {
+        int pressed = keys & ~this.keys;
+        this.keys = keys;
+        if (keyboardPoll && keys != 0) {
+            int key = Integer.numberOfTrailingZeros(pressed != 0 ? pressed : keys);
+            v[waitRegister] = key;
+            keyboardPoll = false;
+            if (keyWaitEvent != null) {
+                keyWaitEvent.key = key;
+                keyWaitEvent.commit();
+                keyWaitEvent = null;
+            }
+        }
+    }
+
+    public int getKeys() {
+        return keys;
     }
 
-    public void setKeyPressed(int keyPressed) {
-        this.keyPressed = keyPressed;
+    public void setBeeper(Runnable beeper) {
+        this.beeper = beeper;
     }
 
     /**
      * Play beep sound effect
      */
     private void beep() {
-        Toolkit.getDefaultToolkit().beep();
+        beeper.run();
     }
 
     /**
@@ -150,18 +310,25 @@ public class Cpu {
         return ((n << 8) | (n2 << 4) | n3);
     }
 
-    private void updateGameScreen() {
-
-        for (int x = 0; x < frameBuffer.length; x++) {
-            for (int y = 0; y < frameBuffer[x].length; y++) {
-                if (frameBuffer[x][y] == 1) {
-                    gameScreen.setRGB(x, y, PIXEL_ON);
-                } else {
-                    gameScreen.setRGB(x, y, PIXEL_OFF);
-                }
-            }
-        }
+    /**
+     * Write a byte to memory, dropping any decoded copy of the code that was there
+     * 
+     * @param address
+     * @param value
+     */
+    private void writeMemory(int address, int value) {
+        memory[address] = value;
+        decodeCache.invalidate(address);
+        jit.invalidate(address);
+    }
 
+    /**
+     * The opcode at PC, without moving PC
+     * 
+     * @return
+     */
+    private int currentOpcode() {
+        return ((memory[PC] & 0xFF) << 8) | (memory[PC + 1] & 0xFF);
     }
 
     /**
@@ -184,106 +351,104 @@ public class Cpu {
         return opcode;
     }
 
+    /**
+     * Skip the next instruction. XO-Chip's F000 NNNN is four bytes, skipping
+     * it skips all of it.
+     */
+    private void skip() {
+        if (platform == Platform.XOCHIP && PC + 1 < memory.length && currentOpcode() == 0xF000)
+            PC += 4;
+        else
+            PC += 2;
+    }
+
     /**
      * Clear screen
      * 0x00E0
      */
-    private void clearDisplay() {
-        for (int x = 0; x < 64; x++) {
-            for (int y = 0; y < 32; y++) {
-                frameBuffer[x][y] = PIXEL_OFF;
-            }
+    void clearDisplay() {
+        frameBuffer.clear();
+        if (Jfr.isActive()) {
+            ClearScreenEvent event = new ClearScreenEvent();
+            if (event.isEnabled())
+                event.commit();
         }
-        printDebug(opcodeString, "CLS");
-        updateGameScreen();
     }
 
     /**
      * Return from subroutine
      * 0x00EE
      */
-    private void returnFromSubRoutine() {
+    void returnFromSubRoutine() {
+        if (sp == 0) {
+            // Nothing to return to
+            halt();
+            return;
+        }
         // Get the address from the top of the stack
-        int subRoutineAddress = stack.pop();
-        printDebug(opcodeString, String.format("RET $%02x", subRoutineAddress));
-        PC = subRoutineAddress;
+        PC = stack[--sp];
     }
 
     /**
      * 
-     * 0x2NNN (IGNORE)
+     * 0x0NNN (IGNORE)
      * 
-     * @param argument1
-     * @param argument2
-     * @param argument3
+     * @param address
      */
-    private void call(int argument1, int argument2, int argument3) {
+    void call(int address) {
         // NOP
     }
 
     /**
      * Jumps to NNN
      * 0x1NNN
+     * 
+     * @param address
      */
-    private void jump(int argument1, int argument2, int argument3) {
-        int address = convertToAddress(argument1, argument2, argument3);
-        printDebug(opcodeString, String.format("JMP $%02x", address));
+    void jump(int address) {
         PC = address;
     }
 
     /**
-     * Goes to subroutine NN
+     * Goes to subroutine NNN
      * 0x2NNN
      * 
-     * @param argument1
-     * @param argument2
-     * @param argument3
+     * @param address
      */
-    private void subRoutine(int argument1, int argument2, int argument3) {
-        int address = convertToAddress(argument1, argument2, argument3);
-        printDebug(opcodeString, String.format("SUB $%02x", address));
-
-        stack.push(PC);
+    void subRoutine(int address) {
+        if (sp == STACK_DEPTH) {
+            halt();
+            return;
+        }
+        stack[sp++] = PC;
         PC = address;
     }
 
     /**
      * Skips instruction if equal
      * if v[x] == NN
-     * 0x3NNN
+     * 0x3XNN
      * 
-     * @param argument1
-     * @param argument2
-     * @param argument3
+     * @param x
+     * @param nn
      */
-    private void skipEqual(int argument1, int argument2, int argument3) {
-
-        int nn = convertTo8Bit(argument2, argument3);
-        printDebug(opcodeString, String.format("SKP $%02x == $%02x", nn, v[argument1]));
-
-        if (v[argument1] == nn) {
-            // Skip
-            PC += 2;
+    void skipEqual(int x, int nn) {
+        if (v[x] == nn) {
+            skip();
         }
     }
 
     /**
      * Skips if not equal
      * if v[x] != NN
-     * 0x4NNN
+     * 0x4XNN
      * 
-     * @param argument1
-     * @param argument2
-     * @param argument3
+     * @param x
+     * @param nn
      */
-    private void skipNotEqual(int argument1, int argument2, int argument3) {
-
-        int nn = convertTo8Bit(argument2, argument3);
-        printDebug(opcodeString, String.format("SKP $%02x != $%02x", v[argument1], nn));
-
-        if (v[argument1] != nn) {
-            // Skip
-            PC += 2;
+    void skipNotEqual(int x, int nn) {
+        if (v[x] != nn) {
+            skip();
         }
 
     }
@@ -291,15 +456,14 @@ public class Cpu {
     /**
      * Skips instruction if equal
      * if v[x] == v[y]
-     * 0x5NN0
+     * 0x5XY0
      * 
-     * @param argument1
-     * @param argument2
+     * @param x
+     * @param y
      */
-    private void skipEqual(int argument1, int argument2) {
-        printDebug(opcodeString, String.format("SKP $%02x == $%02x", v[argument1], v[argument2]));
-        if (v[argument1] == v[argument2]) {
-            PC += 2;
+    void skipEqualRegister(int x, int y) {
+        if (v[x] == v[y]) {
+            skip();
         }
     }
 
@@ -307,29 +471,109 @@ public class Cpu {
      * Sets Variable[x] to NN
      * 0x6XNN
      * 
-     * @param argument1
-     * @param argument2
-     * @param argument3
+     * @param x
+     * @param nn
      */
-    private void set(int argument1, int argument2, int argument3) {
-        int nn = convertTo8Bit(argument2, argument3);
-        printDebug(opcodeString, String.format("SET $v[%02x] = $%02x", argument1, nn));
-
-        v[argument1] = nn & 0xFF;
+    void set(int x, int nn) {
+        v[x] = nn & 0xFF;
     }
 
     /**
      * Adds NN to Variable[x]
      * 0x7XNN
      * 
-     * @param argument1
-     * @param argument2
-     * @param argument3
+     * @param x
+     * @param nn
+     */
+    void add(int x, int nn) {
+        v[x] = (v[x] + nn) & 0xFF;
+    }
+
+    /**
+     * v[x] = v[y]
+     * 0x8XY0
+     */
+    void setVxToVy(int x, int y) {
+        v[x] = v[y];
+    }
+
+    /**
+     * v[x] |= v[y]
+     * 0x8XY1
+     */
+    void orVxVy(int x, int y) {
+        v[x] = (v[x] | v[y]) & 0xFF;
+    }
+
+    /**
+     * v[x] &= v[y]
+     * 0x8XY2
+     */
+    void andVxVy(int x, int y) {
+        v[x] = (v[x] & v[y]) & 0xFF;
+    }
+
+    /**
+     * v[x] ^= v[y]
+     * 0x8XY3
+     */
+    void xorVxVy(int x, int y) {
+        v[x] = (v[x] ^ v[y]) & 0xFF;
+    }
+
+    /**
+     * v[x] += v[y], v[F] is the carry
+     * 0x8XY4
+     */
+    void addVxVy(int x, int y) {
+        int sum = v[x] + v[y];
+        int carry = (sum > 0xFF) ? 1 : 0;
+        v[x] = sum & 0xFF;
+        v[0xF] = carry;
+    }
+
+    /**
+     * v[x] -= v[y], v[F] is 1 if there was no borrow
+     * 0x8XY5
+     */
+    void subVxVy(int x, int y) {
+        int vx = v[x] & 0xFF;
+        int vy = v[y] & 0xFF;
+        int carry = (vx >= vy) ? 1 : 0;
+        v[x] = (vx - vy) & 0xFF;
+        v[0xF] = carry;
+    }
+
+    /**
+     * v[x] >>= 1, v[F] is the bit shifted out. XO-Chip shifts v[y] into v[x].
+     * 0x8XY6
+     */
+    void shiftRight(int x, int y) {
+        int value = platform == Platform.XOCHIP ? v[y] : v[x];
+        int carry = value & 1;
+        v[x] = (value >> 1) & 0xFF;
+        v[0xF] = carry;
+    }
+
+    /**
+     * v[x] = v[y] - v[x], v[F] is 1 if there was no borrow
+     * 0x8XY7
+     */
+    void subVyVx(int x, int y) {
+        int carry = (v[y] >= v[x]) ? 1 : 0;
+        v[x] = (v[y] - v[x]) & 0xFF;
+        v[0xF] = carry;
+    }
+
+    /**
+     * v[x] <<= 1, v[F] is the bit shifted out. XO-Chip shifts v[y] into v[x].
+     * 0x8XYE
      */
-    private void add(int argument1, int argument2, int argument3) {
-        int nn = convertTo8Bit(argument2, argument3);
-        printDebug(opcodeString, String.format("ADD $v[%02x] = $%02x", argument1, nn));
-        v[argument1] = (v[argument1] + nn) & 0xFF;
+    void shiftLeft(int x, int y) {
+        int value = platform == Platform.XOCHIP ? v[y] : v[x];
+        int carry = (value & 0x80) >> 7;
+        v[x] = (value << 1) & 0xFF;
+        v[0xF] = carry;
     }
 
     /**
@@ -341,76 +585,45 @@ public class Cpu {
      * @param n
      */
     private void handle0x8Opcode(int x, int y, int n) {
-        int carry = 0;
         switch (n) {
             case 0x0:
-                v[x] = v[y];
-                printDebug(opcodeString, String.format("SET $v[%02x] = $v[%02x]", x, y));
-
+                setVxToVy(x, y);
                 break;
 
             case 0x1:
-                v[x] = (v[x] | v[y]) & 0xFF;
-                printDebug(opcodeString, String.format("OR $v[%02x] = $v[%02x]", x, y));
-
+                orVxVy(x, y);
                 break;
 
             case 0x2:
-                v[x] = (v[x] & v[y]) & 0xFF;
-                printDebug(opcodeString, String.format("AND $v[%02x] = $v[%02x]", x, y));
-
+                andVxVy(x, y);
                 break;
 
             case 0x3:
-                v[x] = (v[x] ^ v[y]) & 0xFF;
-                printDebug(opcodeString, String.format("XOR $v[%02x] = $v[%02x]", x, y));
-
+                xorVxVy(x, y);
                 break;
 
             case 0x4:
-                int sum = v[x] + v[y];
-                carry = (sum > 0xFF) ? 1 : 0;
-                v[x] = sum & 0xFF;
-                printDebug(opcodeString, String.format("ADD $v[%02x] = $v[%02x]", x, y));
-                v[0xF] = carry;
+                addVxVy(x, y);
                 break;
 
             case 0x5:
-                int vx = v[x] & 0xFF;
-                int vy = v[y] & 0xFF;
-                carry = (vx >= vy) ? 1 : 0;
-                v[x] = (vx - vy) & 0xFF;
-                v[0xF] = carry;
-                printDebug(opcodeString, String.format("MIN $v[%02x] = $v[%02x]", x, y));
-
+                subVxVy(x, y);
                 break;
 
             case 0x6:
-                carry = v[x] & 1;
-                v[x] = (v[x] >> 1) & 0xFF;
-                v[0xF] = carry;
-                printDebug(opcodeString, String.format("SRL $v[%02x] >> 1", x));
-
+                shiftRight(x, y);
                 break;
 
             case 0x7:
-                carry = (v[y] >= v[x]) ? 1 : 0;
-                v[x] = (v[y] - v[x]) & 0xFF;
-                v[0xF] = carry;
-                printDebug(opcodeString, String.format("MIN $v[%02x] = $v[%02x]", y, x));
-
+                subVyVx(x, y);
                 break;
 
             case 0xE:
-                carry = (v[x] & 0x80) >> 7;
-                v[x] = (v[x] << 1) & 0xFF;
-                v[0xF] = carry;
-                printDebug(opcodeString, String.format("SLL $v[%02x] << 1", x));
-
+                shiftLeft(x, y);
                 break;
 
             default:
-                printDebug(opcodeString, String.format("Unknown opcode"));
+                unknownOpcode();
                 break;
         }
 
@@ -420,14 +633,12 @@ public class Cpu {
      * Skips instruction if V[x] != V[y]
      * 0x9XY0
      * 
-     * @param argument1
-     * @param argument2
+     * @param x
+     * @param y
      */
-    private void skipNotEqual(int argument1, int argument2) {
-        printDebug(opcodeString, String.format("SKP $v[%02x] != $v[%02x]", argument1, argument2));
-        if (v[argument1] != v[argument2]) {
-            // Skip
-            PC += 2;
+    void skipNotEqualRegister(int x, int y) {
+        if (v[x] != v[y]) {
+            skip();
         }
     }
 
@@ -435,92 +646,94 @@ public class Cpu {
      * Set I to NNN
      * 0xANNN
      * 
-     * @param argument1
-     * @param argument2
-     * @param argument3
+     * @param address
      */
-    private void setAddress(int argument1, int argument2, int argument3) {
-        int address = convertToAddress(argument1, argument2, argument3);
-        printDebug(opcodeString, String.format("SET I == $%02x", address));
+    void setAddress(int address) {
         i = (address & I_MASK);
     }
 
     /**
-     * Jump to V0 + NNN
+     * Jump to V0 + NNN, Super-Chip jumps to VX + XNN
      * 0xBNNN
      * 
-     * @param argument1
-     * @param argument2
-     * @param argument3
+     * @param address
      */
-    private void jumpTo(int argument1, int argument2, int argument3) {
-        int address = convertToAddress(argument1, argument2, argument3);
-        printDebug(opcodeString, String.format("JMP $%02x", address));
-        PC = v[0] + address;
+    void jumpTo(int address) {
+        PC = (platform == Platform.SCHIP ? v[address >> 8] : v[0]) + address;
     }
 
     /**
      * v[x] = random & nn
      * 0xCXNN
      * 
-     * @param argument1
-     * @param argument2
-     * @param argument3
+     * @param x
+     * @param nn
      */
-    private void andRandom(int argument1, int argument2, int argument3) {
-        int nn = convertTo8Bit(argument2, argument3);
-        printDebug(opcodeString, String.format("RAND $v[%02x] = $%02x", argument1, nn));
-        v[argument1] = (int) (Math.random() * 255) & nn;
+    void andRandom(int x, int nn) {
+        v[x] = nextRandom() & nn;
     }
 
     /**
      * Draw to the screen. v[x], v[y], n
+     * On Super-Chip and XO-Chip a height of 0 draws a 16x16 sprite, two bytes
+     * a row. With both XO-Chip planes selected the second plane's sprite
+     * follows the first's.
      * 0xDXYN
      * 
      * @param x
      * @param y
      * @param height
      */
-    private void draw(int x, int y, int height) {
-        printDebug(opcodeString, String.format("DRAW $v[%02x] $v[%02x] $%02x", x, y, height));
+    void draw(int x, int y, int height) {
         int xCo = v[x];
         int yCo = v[y];
-        int width = 8;
         v[0xf] = 0x0;
 
-        for (int bitY = 0; bitY < height; bitY++) {
-            int sprite = memory[i + bitY] & 0xFF;
-            for (int bitX = 0; bitX < width; bitX++) {
-
-                int pixel = (sprite >> (7 - bitX)) & 1;
-                if (pixel == 1) {
-                    int wrapAroundX = (xCo + bitX) % 64;
-                    int wrapAroundY = (yCo + bitY) % 32;
-                    if (frameBuffer[wrapAroundX][wrapAroundY] == 1) {
-                        v[0xf] = 1;
-                    }
-                    frameBuffer[wrapAroundX][wrapAroundY] ^= 1;
+        int width = 8;
+        if (height == 0 && platform != Platform.CHIP8) {
+            width = 16;
+            height = 16;
+        }
+        int address = i;
+        int selectedPlanes = frameBuffer.getSelectedPlanes();
+        for (int plane = 0; plane < FrameBuffer.PLANES; plane++) {
+            if ((selectedPlanes >> plane & 1) == 0)
+                continue;
+            for (int bitY = 0; bitY < height; bitY++) {
+                int sprite;
+                if (width == 16) {
+                    sprite = (memory[address] & 0xFF) << 8 | (memory[address + 1] & 0xFF);
+                    address += 2;
+                } else
+                    sprite = memory[address++] & 0xFF;
+                if (frameBuffer.drawSpriteRow(plane, xCo, yCo + bitY, sprite, width)) {
+                    v[0xf] = 1;
                 }
             }
         }
 
+        if (Jfr.isActive()) {
+            DrawEvent event = new DrawEvent();
+            if (event.isEnabled()) {
+                event.x = xCo;
+                event.y = yCo;
+                event.height = height;
+                event.collision = v[0xf] == 1;
+                event.commit();
+            }
+        }
+
     }
 
     /**
      * Skip if key pressed
      * 0xEX9E
      * 
-     * @param argument1
-     * @param argument2
-     * @param argument3
+     * @param x
      */
-    private void skipKeyPressed(int argument1, int argument2, int argument3) {
-        int keyCode = v[argument1];
-        printDebug(opcodeString, String.format("SKP KEY == $%02x", argument2));
-
-        // Get most recent key pressed
-        if (keyCode == keyPressed) {
-            PC += 2;
+    void skipKeyPressed(int x) {
+        if (isKeyDown(v[x])) {
+            skip();
         }
 
     }
@@ -529,44 +742,75 @@ public class Cpu {
      * Skip if key not pressed
      * 0xEXA1
      * 
-     * @param argument1
-     * @param argument2
-     * @param argument3
+     * @param x
      */
-    private void skipKeyNotPressed(int argument1, int argument2, int argument3) {
-        int keyCode = v[argument1];
-        printDebug(opcodeString, String.format("SKP KEY != $%02x", argument2));
-
-        // Get most recent key pressed
-        if (keyCode != keyPressed) {
-            PC += 2;
+    void skipKeyNotPressed(int x) {
+        if (!isKeyDown(v[x])) {
+            skip();
         }
     }
 
+    /**
+     * @param key Anything above F is never down
+     * @return
+     */
+    private boolean isKeyDown(int key) {
+        return key < Keypad.KEYS && (keys >> key & 1) != 0;
+    }
+
     /**
      * Set v[x] to delay timer
+     * If this is the FX07 of a loop waiting for the timer to run out, stop
+     * here until the timers tick, going round again would change nothing.
      * 
      * @param x
      */
-    private void setvxTimerDelay(int x) {
+    void setvxTimerDelay(int x) {
         v[x] = delayTimer;
-        printDebug(opcodeString, String.format("SET TIMER $v[%02x] = $%02x", x, delayTimer));
+        if (delayTimer > 0 && isDelayLoop(x)) {
+            PC -= 2;
+            idle = true;
+        }
+    }
 
+    /**
+     * Is the FX07 just before PC followed by
+     * SE Vx, 0
+     * JP back to the FX07
+     * 
+     * @param x
+     * @return
+     */
+    private boolean isDelayLoop(int x) {
+        if (PC + 3 >= memory.length)
+            return false;
+        int skip = ((memory[PC] & 0xFF) << 8) | (memory[PC + 1] & 0xFF);
+        int jump = ((memory[PC + 2] & 0xFF) << 8) | (memory[PC + 3] & 0xFF);
+        return skip == (0x3000 | x << 8) && jump == (0x1000 | (PC - 2));
     }
 
     /**
      * Wait for key press
      * v[x] = keycode
+     * Stops the cpu until setKeys() gets a key, unless one is already held
+     * down.
      * 
      * @param x v[x]
      */
-    private void waitForKeyPress(int x) {
-        printDebug(opcodeString, String.format("WAIT KEY_PRESS"));
-
+    void waitForKeyPress(int x) {
+        if (keys != 0) {
+            v[x] = Integer.numberOfTrailingZeros(keys);
+            return;
+        }
+        waitRegister = x;
         keyboardPoll = true;
-        if (keyPressed != -1) {
-            keyboardPoll = false;
-            v[x] = keyPressed;
+        if (Jfr.isActive()) {
+            KeyWaitEvent event = new KeyWaitEvent();
+            if (event.isEnabled()) {
+                event.register = x;
+                event.begin();
+                keyWaitEvent = event;
+            }
         }
     }
 
@@ -575,8 +819,7 @@ public class Cpu {
      * 
      * @param x v[x]
      */
-    private void setDelayTimer(int x) {
-        printDebug(opcodeString, String.format("SET TIME = $v[%02x]", x));
+    void setDelayTimer(int x) {
         delayTimer = v[x];
     }
 
@@ -585,8 +828,7 @@ public class Cpu {
      * 
      * @param x v[x]
      */
-    private void setSoundTimer(int x) {
-        printDebug(opcodeString, String.format("SET SOUND = $v[%02x]", x));
+    void setSoundTimer(int x) {
         soundTimer = v[x];
     }
 
@@ -595,8 +837,7 @@ public class Cpu {
      * 
      * @param x
      */
-    private void iaddVx(int x) {
-        printDebug(opcodeString, String.format("ADD I + $v[%02x]", x));
+    void iaddVx(int x) {
         i += v[x];
     }
 
@@ -605,8 +846,7 @@ public class Cpu {
      * 
      * @param x v[x]
      */
-    private void setiSpriteLocation(int x) {
-        printDebug(opcodeString, String.format("SPRITE"));
+    void setiSpriteLocation(int x) {
         int value = v[x] & 0xFF;
         i = 0x000 + (value * 5);
     }
@@ -616,16 +856,15 @@ public class Cpu {
      * 
      * @param x v[x]
      */
-    private void setBcd(int x) {
-        printDebug(opcodeString, String.format("BCD"));
+    void setBcd(int x) {
         int value = v[x] & 0xFF;
         int hundreds = value / 100;
         int tens = (value / 10) % 10;
         int ones = value % 10;
 
-        memory[i] = (int) hundreds;
-        memory[i + 1] = (int) tens;
-        memory[i + 2] = (int) ones;
+        writeMemory(i, hundreds);
+        writeMemory(i + 1, tens);
+        writeMemory(i + 2, ones);
     }
 
     /**
@@ -633,13 +872,13 @@ public class Cpu {
      * 
      * @param x v[x]
      */
-    private void storeV0toVxInMemory(int x) {
-        printDebug(opcodeString, String.format("STORE v[0] .. $v[%02x]", x));
-
+    void storeV0toVxInMemory(int x) {
         for (int index = 0; index <= x; index++) {
             // Store v[i] in memory starting at I
-            memory[i + index] = v[index];
+            writeMemory(i + index, v[index]);
         }
+        if (platform == Platform.XOCHIP)
+            i += x + 1;
     }
 
     /**
@@ -647,36 +886,192 @@ public class Cpu {
      * 
      * @param x v[x]
      */
-    private void readV0toVxFromMemory(int x) {
-        printDebug(opcodeString, String.format("READ I = %02x ; v[0] .. $v[%02x]", i, x));
-
+    void readV0toVxFromMemory(int x) {
         for (int index = 0; index <= x; index++) {
             v[index] = memory[i + index];
         }
+        if (platform == Platform.XOCHIP)
+            i += x + 1;
     }
 
     /**
-     * Handle all opcodes 0xFXNN
+     * Scroll the screen down n rows
+     * 0x00CN
      * 
-     * @param argument1
-     * @param argument2
-     * @param argument3
+     * @param n
      */
-    private void handle0xFOpcode(int instruction, int argument1, int argument2, int argument3) {
+    void scrollDown(int n) {
+        frameBuffer.scrollDown(n);
+    }
 
-        int endingNibbles = (instruction & 0xFF);
+    /**
+     * Scroll the screen up n rows, XO-Chip
+     * 0x00DN
+     * 
+     * @param n
+     */
+    void scrollUp(int n) {
+        frameBuffer.scrollUp(n);
+    }
 
-        switch (endingNibbles) {
-            case 0x07:
-                setvxTimerDelay(argument1);
-                break;
+    /**
+     * Scroll the screen right 4 pixels
+     * 0x00FB
+     */
+    void scrollRight() {
+        frameBuffer.scrollRight(4);
+    }
 
-            case 0x0A:
-                waitForKeyPress(argument1);
-                break;
+    /**
+     * Scroll the screen left 4 pixels
+     * 0x00FC
+     */
+    void scrollLeft() {
+        frameBuffer.scrollLeft(4);
+    }
 
-            case 0x15:
-                setDelayTimer(argument1);
+    /**
+     * Stop running, like halt() but the rom meant it
+     * 0x00FD
+     */
+    void exit() {
+        PC -= 2;
+        status = Status.EXIT;
+    }
+
+    /**
+     * 128x64 (0x00FF) or 64x32 (0x00FE), clears the screen
+     * 
+     * @param hires
+     */
+    void setHires(boolean hires) {
+        frameBuffer.setHires(hires);
+    }
+
+    /**
+     * Sets I to the big sprite for the low digit of v[x]
+     * 0xFX30
+     * 
+     * @param x
+     */
+    void setiBigSpriteLocation(int x) {
+        i = Fonts.BIG + (v[x] & 0xF) * Fonts.BIG_SIZE;
+    }
+
+    /**
+     * Save v[0] ... v[x] to the user flags
+     * 0xFX75
+     * 
+     * @param x
+     */
+    void saveFlags(int x) {
+        System.arraycopy(v, 0, flags, 0, x + 1);
+    }
+
+    /**
+     * Load v[0] ... v[x] from the user flags
+     * 0xFX85
+     * 
+     * @param x
+     */
+    void loadFlags(int x) {
+        System.arraycopy(flags, 0, v, 0, x + 1);
+    }
+
+    /**
+     * Store v[x] ... v[y] in memory starting at I, backwards if y is below x.
+     * I stays put.
+     * 0x5XY2
+     * 
+     * @param x
+     * @param y
+     */
+    void saveRange(int x, int y) {
+        int step = x <= y ? 1 : -1;
+        for (int index = 0; index <= Math.abs(y - x); index++) {
+            writeMemory(i + index, v[x + index * step]);
+        }
+    }
+
+    /**
+     * Read v[x] ... v[y] from memory starting at I, backwards if y is below
+     * x. I stays put.
+     * 0x5XY3
+     * 
+     * @param x
+     * @param y
+     */
+    void loadRange(int x, int y) {
+        int step = x <= y ? 1 : -1;
+        for (int index = 0; index <= Math.abs(y - x); index++) {
+            v[x + index * step] = memory[i + index];
+        }
+    }
+
+    /**
+     * I = the 16 bit address in the next two bytes, XO-Chip
+     * 0xF000 NNNN
+     */
+    void loadLongAddress() {
+        i = ((memory[PC] & 0xFF) << 8) | (memory[PC + 1] & 0xFF);
+        PC += 2;
+    }
+
+    /**
+     * Choose the planes to draw on, XO-Chip
+     * 0xFN01
+     * 
+     * @param planes Bit mask
+     */
+    void selectPlanes(int planes) {
+        frameBuffer.selectPlanes(planes);
+    }
+
+    /**
+     * Load the 16 byte audio pattern from I, XO-Chip
+     * 0xF002
+     */
+    void loadAudioPattern() {
+        for (int index = 0; index < audioPattern.length; index++) {
+            audioPattern[index] = memory[i + index] & 0xFF;
+        }
+    }
+
+    /**
+     * Set the audio pitch to v[x], XO-Chip
+     * 0xFX3A
+     * 
+     * @param x
+     */
+    void setPitch(int x) {
+        pitch = v[x];
+    }
+
+    /**
+     * Handle all opcodes 0xFXNN
+     * 
+     * @param argument1
+     * @param argument2
+     * @param argument3
+     */
+    private void handle0xFOpcode(int instruction, int argument1, int argument2, int argument3) {
+
+        int endingNibbles = (instruction & 0xFF);
+
+        if (platform != Platform.CHIP8 && handleSuperChip0xFOpcode(instruction, argument1))
+            return;
+
+        switch (endingNibbles) {
+            case 0x07:
+                setvxTimerDelay(argument1);
+                break;
+
+            case 0x0A:
+                waitForKeyPress(argument1);
+                break;
+
+            case 0x15:
+                setDelayTimer(argument1);
                 break;
 
             case 0x18:
@@ -705,15 +1100,79 @@ public class Cpu {
 
             default:
                 // Invalid opcode
-                printDebug(opcodeString, "Unknown opcode");
+                unknownOpcode();
                 break;
         }
 
     }
 
-    private void handleOperation(int opcode, int instruction, int argument1, int argument2, int argument3) {
-        opcodeString = String.format("%04x", opcode & 0xffff);
+    /**
+     * The FX opcodes Super-Chip and XO-Chip add
+     * 
+     * @param instruction
+     * @param x
+     * @return false if it is a plain Chip8 one
+     */
+    private boolean handleSuperChip0xFOpcode(int instruction, int x) {
+        switch (instruction & 0xFF) {
+            case 0x30:
+                setiBigSpriteLocation(x);
+                return true;
+            case 0x75:
+                saveFlags(x);
+                return true;
+            case 0x85:
+                loadFlags(x);
+                return true;
+            default:
+                break;
+        }
+        if (platform != Platform.XOCHIP)
+            return false;
+        if (instruction == 0xF000)
+            loadLongAddress();
+        else if (instruction == 0xF002)
+            loadAudioPattern();
+        else if ((instruction & 0xFF) == 0x01)
+            selectPlanes(x);
+        else if ((instruction & 0xFF) == 0x3A)
+            setPitch(x);
+        else
+            return false;
+        return true;
+    }
+
+    /**
+     * Scrolling, exit and resolution, anything else is an ignored call
+     * 
+     * @param opcode 0x00NN
+     */
+    private void handleSuperChip0x0Opcode(int opcode) {
+        if ((opcode & 0xFFF0) == 0x00C0) {
+            scrollDown(opcode & 0xF);
+        } else if ((opcode & 0xFFF0) == 0x00D0 && platform == Platform.XOCHIP) {
+            scrollUp(opcode & 0xF);
+        } else if (opcode == 0x00FB) {
+            scrollRight();
+        } else if (opcode == 0x00FC) {
+            scrollLeft();
+        } else if (opcode == 0x00FD) {
+            exit();
+        } else if (opcode == 0x00FE) {
+            setHires(false);
+        } else if (opcode == 0x00FF) {
+            setHires(true);
+        }
+    }
 
+    /**
+     * Anything that does not decode to a real instruction
+     */
+    void unknownOpcode() {
+        // Nothing to do, the trace shows what it was
+    }
+
+    private void handleOperation(int opcode, int instruction, int argument1, int argument2, int argument3) {
         switch (instruction) {
             case 0x0:
                 if (argument1 == 0 && argument2 == 0xE) {
@@ -724,38 +1183,45 @@ public class Cpu {
                         // Return from sub routine (0x00EE)
                         returnFromSubRoutine();
                     }
+                } else if (platform != Platform.CHIP8 && argument1 == 0) {
+                    handleSuperChip0x0Opcode(opcode);
                 } else {
                     // Call (0x0NNN)
-                    // call(argument1, argument2, argument3);
+                    // call(convertToAddress(argument1, argument2, argument3));
                 }
                 break;
 
             case 0x1:
-                jump(argument1, argument2, argument3);
+                jump(convertToAddress(argument1, argument2, argument3));
                 break;
 
             case 0x2:
-                subRoutine(argument1, argument2, argument3);
+                subRoutine(convertToAddress(argument1, argument2, argument3));
                 break;
 
             case 0x3:
-                skipEqual(argument1, argument2, argument3);
+                skipEqual(argument1, convertTo8Bit(argument2, argument3));
                 break;
 
             case 0x4:
-                skipNotEqual(argument1, argument2, argument3);
+                skipNotEqual(argument1, convertTo8Bit(argument2, argument3));
                 break;
 
             case 0x5:
-                skipEqual(argument1, argument2);
+                if (platform == Platform.XOCHIP && argument3 == 0x2)
+                    saveRange(argument1, argument2);
+                else if (platform == Platform.XOCHIP && argument3 == 0x3)
+                    loadRange(argument1, argument2);
+                else
+                    skipEqualRegister(argument1, argument2);
                 break;
 
             case 0x6:
-                set(argument1, argument2, argument3);
+                set(argument1, convertTo8Bit(argument2, argument3));
                 break;
 
             case 0x7:
-                add(argument1, argument2, argument3);
+                add(argument1, convertTo8Bit(argument2, argument3));
                 break;
 
             case 0x8:
@@ -763,19 +1229,19 @@ public class Cpu {
                 break;
 
             case 0x9:
-                skipNotEqual(argument1, argument2);
+                skipNotEqualRegister(argument1, argument2);
                 break;
 
             case 0xA:
-                setAddress(argument1, argument2, argument3);
+                setAddress(convertToAddress(argument1, argument2, argument3));
                 break;
 
             case 0xB:
-                jumpTo(argument1, argument2, argument3);
+                jumpTo(convertToAddress(argument1, argument2, argument3));
                 break;
 
             case 0xC:
-                andRandom(argument1, argument2, argument3);
+                andRandom(argument1, convertTo8Bit(argument2, argument3));
                 break;
 
             case 0xD:
@@ -784,12 +1250,11 @@ public class Cpu {
 
             case 0xE:
                 if (argument2 == 0x9 && argument3 == 0xE) {
-                    skipKeyPressed(argument1, argument2, argument3);
+                    skipKeyPressed(argument1);
                 } else if (argument2 == 0xA && argument3 == 0x1) {
-                    skipKeyNotPressed(argument1, argument2, argument3);
+                    skipKeyNotPressed(argument1);
                 } else {
-                    printDebug(opcodeString, "Unknown opcode");
-
+                    unknownOpcode();
                 }
 
                 break;
@@ -799,14 +1264,24 @@ public class Cpu {
                 break;
 
             default:
-                printDebug(opcodeString, "Unknown opcode");
+                unknownOpcode();
                 break;
         }
     }
 
     public void tick() {
-        updateGameScreen();
-        if (!keyboardPoll && !pause) {
+        if (canExecute()) {
+            if (interpreter == Interpreter.TABLE) {
+                tickTable();
+                return;
+            }
+            if (interpreter == Interpreter.CACHED || interpreter == Interpreter.JIT
+                    || interpreter == Interpreter.AOT) {
+                tickCached();
+                return;
+            }
+            if (trace != null)
+                trace.record(PC, currentOpcode(), i, v);
             int opcode = fetchOpcode();
             // Extract each nibble of the 4 int buffer
             int instructionCode = ((opcode & 0xF000) >> 12) & 0xFF;
@@ -816,47 +1291,516 @@ public class Cpu {
 
             // Handle operation and execute associated instruction
             handleOperation(opcode, instructionCode, argument1, argument2, argument3);
+        }
+    }
+
+    /**
+     * Fetch, look the opcode up in the dispatch table and run it.
+     */
+    private void tickTable() {
+        if (trace != null)
+            trace.record(PC, currentOpcode(), i, v);
+        int opcode = fetchOpcode();
+
+        dispatchTable[opcode].execute(this);
+    }
+
+    /**
+     * Take the decoded instruction from the cache and run it.
+     */
+    private void tickCached() {
+        if (trace != null)
+            trace.record(PC, currentOpcode(), i, v);
+        Instruction instruction = decodeCache.get(memory, PC);
+        PC += 2;
+
+        instruction.execute(this);
+    }
+
+    /**
+     * Execute up to the given number of instructions.
+     * Stops early if the CPU is paused, waiting for a key or idle until the
+     * next timer tick.
+     * 
+     * @param cycles Instruction budget
+     * @return Number of instructions actually executed
+     */
+    public int run(int cycles) {
+        if (profiler != null)
+            return runProfiled(cycles);
+        if (interpreter == Interpreter.JIT || interpreter == Interpreter.AOT)
+            return jit.run(this, cycles);
+        int executed = 0;
+        while (executed < cycles && canExecute()) {
+            tick();
+            executed++;
+        }
+        return executed;
+    }
 
-            // Handle the timers
-            handleTimers();
+    /**
+     * run() with every instruction counted. Kept apart so the other loops
+     * carry no profiling code. Compiled blocks can't count single addresses,
+     * so JIT and AOT run through their interpreter while profiling.
+     */
+    private int runProfiled(int cycles) {
+        int executed = 0;
+        while (executed < cycles && canExecute()) {
+            profiler.record(PC, currentOpcode());
+            tick();
+            executed++;
         }
+        return executed;
+    }
+
+    /**
+     * Count every instruction run() executes, null to stop
+     * 
+     * @param profiler
+     */
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    public Interpreter getInterpreter() {
+        return interpreter;
+    }
+
+    /**
+     * Choose how instructions are decoded and dispatched.
+     * 
+     * @param interpreter
+     */
+    public void setInterpreter(Interpreter interpreter) {
+        boolean preload = interpreter == Interpreter.AOT && this.interpreter != Interpreter.AOT;
+        this.interpreter = interpreter;
+        // Compiled roms are keyed by the rom, so only install them while memory still holds it
+        if (preload && rom != null && romInMemory())
+            preloadCompiledRom();
+    }
+
+    /**
+     * Where the AOT interpreter keeps compiled roms, ~/.chip8/aot unless set
+     * 
+     * @param aotCache
+     */
+    public void setAotCache(AotCache aotCache) {
+        this.aotCache = aotCache;
+    }
+
+    public AotCache getAotCache() {
+        return aotCache;
+    }
+
+    private void preloadCompiledRom() {
+        if (aotCache == null)
+            aotCache = AotCache.defaultCache();
+        // Blocks the JIT compiled would be replaced without giving back their coverage
+        jit.clear();
+        jit.preload(aotCache.load(rom, memory, platform));
+    }
+
+    /**
+     * Hit, miss and invalidation counts for the CACHED interpreter
+     * 
+     * @return
+     */
+    public DecodeCache getDecodeCache() {
+        return decodeCache;
+    }
+
+    /**
+     * Block counts for the JIT interpreter
+     * 
+     * @return
+     */
+    public Jit getJit() {
+        return jit;
     }
 
     public boolean getPause() {
         return pause;
     }
 
+    boolean canExecute() {
+        return !keyboardPoll && !pause && !idle && status == Status.SUCCESS;
+    }
+
+    /**
+     * True while sitting in a delay timer loop until the next handleTimers()
+     * 
+     * @return
+     */
+    public boolean isIdle() {
+        return idle;
+    }
+
+    /**
+     * ERROR once the cpu has halted, e.g. on a stack overflow
+     * 
+     * @return
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    boolean isTracing() {
+        return trace != null;
+    }
+
+    public boolean isWaitingForKey() {
+        return keyboardPoll;
+    }
+
+    public int[] getV() {
+        return v;
+    }
+
+    public int[] getMemory() {
+        return memory;
+    }
+
+    public FrameBuffer getFrameBuffer() {
+        return frameBuffer;
+    }
+
+    public int getI() {
+        return i;
+    }
+
+    void setI(int i) {
+        this.i = i;
+    }
+
+    public int getPC() {
+        return PC;
+    }
+
+    void setPC(int PC) {
+        this.PC = PC;
+    }
+
+    public int getDelayTimer() {
+        return delayTimer;
+    }
+
+    public int getSoundTimer() {
+        return soundTimer;
+    }
+
     public void setPause(boolean pause) {
         this.pause = pause;
     }
 
     /**
-     * Read rom file.
+     * Bytes in a save state for a platform: header, registers, timers, stack,
+     * rng, memory and the screen, then the user flags and audio for the
+     * platforms that have them
+     * 
+     * @param platform
+     * @return
+     */
+    public static int stateSize(Platform platform) {
+        int size = 4 + 2 + 1 + 2 + 4 + 1 + 1 + 1 + 1 + 1 + 16 + STACK_DEPTH * 2 + 4 + platform.getMemorySize();
+        size += 1 + statePlanes(platform) * stateRows(platform) * stateWords(platform) * 8;
+        if (platform != Platform.CHIP8)
+            size += 16;
+        if (platform == Platform.XOCHIP)
+            size += 1 + 16;
+        return size;
+    }
+
+    /**
+     * Bytes in a save state for the platform being emulated
+     * 
+     * @return
+     */
+    public int getStateSize() {
+        return stateSize(platform);
+    }
+
+    // Only the parts of the screen a platform can draw on are saved
+    private static int statePlanes(Platform platform) {
+        return platform == Platform.XOCHIP ? FrameBuffer.PLANES : 1;
+    }
+
+    private static int stateRows(Platform platform) {
+        return platform == Platform.CHIP8 ? FrameBuffer.HEIGHT : FrameBuffer.HIRES_HEIGHT;
+    }
+
+    private static int stateWords(Platform platform) {
+        return platform == Platform.CHIP8 ? 1 : 2;
+    }
+
+    /**
+     * Write everything needed to carry on from here, getStateSize() bytes
+     * from the buffer's position. Keys, the trace and compiled code are not
+     * part of it.
      * 
-     * @param file Rom file
+     * @param out
      */
-    public void loadRom(File file) {
-        try (InputStream inputStream = new FileInputStream(file)) {
-            System.out.println("File size: " + inputStream.available() + " bytes");
+    public void saveState(ByteBuffer out) {
+        out.order(ByteOrder.BIG_ENDIAN);
+        out.putInt(STATE_MAGIC).putShort(STATE_VERSION).put((byte) platform.ordinal());
+        out.putShort((short) PC).putInt(i);
+        out.put((byte) delayTimer).put((byte) soundTimer).put((byte) sp).put((byte) waitRegister);
+        out.put((byte) ((keyboardPoll ? 1 : 0) | (idle ? 2 : 0) | (status == Status.ERROR ? 4 : 0)
+                | (status == Status.EXIT ? 8 : 0)));
+        for (int index = 0; index < v.length; index++) {
+            out.put((byte) v[index]);
+        }
+        for (int index = 0; index < STACK_DEPTH; index++) {
+            out.putShort((short) stack[index]);
+        }
+        out.putInt(random);
+        for (int index = 0; index < memory.length; index++) {
+            out.put((byte) memory[index]);
+        }
+        out.put((byte) ((frameBuffer.isHires() ? 1 : 0) | frameBuffer.getSelectedPlanes() << 1
+                | (frameBuffer.getPlanesUsed() == FrameBuffer.PLANES ? 8 : 0)));
+        for (int plane = 0; plane < statePlanes(platform); plane++) {
+            for (int y = 0; y < stateRows(platform); y++) {
+                for (int word = 0; word < stateWords(platform); word++) {
+                    out.putLong(frameBuffer.getRow(plane, y, word));
+                }
+            }
+        }
+        if (platform != Platform.CHIP8) {
+            for (int index = 0; index < flags.length; index++) {
+                out.put((byte) flags[index]);
+            }
+        }
+        if (platform == Platform.XOCHIP) {
+            out.put((byte) pitch);
+            for (int index = 0; index < audioPattern.length; index++) {
+                out.put((byte) audioPattern[index]);
+            }
+        }
+    }
 
-            memory = new int[4096];
-            byte[] rom = new byte[inputStream.available()];
+    /**
+     * Carry on from a state written by saveState(). Nothing changes if the
+     * buffer does not hold a state of this version and platform.
+     * 
+     * @param in
+     * @throws IllegalArgumentException If it is not a save state
+     */
+    public void loadState(ByteBuffer in) {
+        in.order(ByteOrder.BIG_ENDIAN);
+        if (in.remaining() < 7 || in.getInt() != STATE_MAGIC)
+            throw new IllegalArgumentException("Not a save state");
+        short version = in.getShort();
+        if (version != STATE_VERSION)
+            throw new IllegalArgumentException("Save state version " + version + ", expected " + STATE_VERSION);
+        int statePlatform = in.get();
+        if (statePlatform != platform.ordinal())
+            throw new IllegalArgumentException("Save state is not for " + platform);
+        if (in.remaining() < getStateSize() - 7)
+            throw new IllegalArgumentException("Save state is cut short");
+        checkState(in, in.position());
+
+        PC = in.getShort() & 0xFFFF;
+        i = in.getInt();
+        delayTimer = in.get() & 0xFF;
+        soundTimer = in.get() & 0xFF;
+        sp = in.get() & 0xFF;
+        waitRegister = in.get() & 0xF;
+        int flagBits = in.get();
+        keyboardPoll = (flagBits & 1) != 0;
+        // A wait that was being recorded did not happen in this timeline
+        keyWaitEvent = null;
+        idle = (flagBits & 2) != 0;
+        status = (flagBits & 4) != 0 ? Status.ERROR : (flagBits & 8) != 0 ? Status.EXIT : Status.SUCCESS;
+        for (int index = 0; index < v.length; index++) {
+            v[index] = in.get() & 0xFF;
+        }
+        for (int index = 0; index < STACK_DEPTH; index++) {
+            stack[index] = in.getShort() & 0xFFFF;
+        }
+        random = in.getInt();
+        for (int index = 0; index < memory.length; index++) {
+            memory[index] = in.get() & 0xFF;
+        }
+        int mode = in.get();
+        frameBuffer.reset();
+        frameBuffer.setMode((mode & 1) != 0, mode >> 1 & 3, (mode & 8) != 0 ? FrameBuffer.PLANES : 1);
+        for (int plane = 0; plane < statePlanes(platform); plane++) {
+            for (int y = 0; y < stateRows(platform); y++) {
+                for (int word = 0; word < stateWords(platform); word++) {
+                    frameBuffer.setRow(plane, y, word, in.getLong());
+                }
+            }
+        }
+        if (platform != Platform.CHIP8) {
+            for (int index = 0; index < flags.length; index++) {
+                flags[index] = in.get() & 0xFF;
+            }
+        }
+        if (platform == Platform.XOCHIP) {
+            pitch = in.get() & 0xFF;
+            for (int index = 0; index < audioPattern.length; index++) {
+                audioPattern[index] = in.get() & 0xFF;
+            }
+        }
 
-            inputStream.read(rom);
+        // The code in memory may be anything now
+        decodeCache.clear();
+        jit.clear();
+        if (interpreter == Interpreter.AOT && rom != null && romInMemory())
+            preloadCompiledRom();
+    }
 
-            /**
-             * To any dev reading this:
-             * Due to persistent problems with how Java handles bytes, everything is now int
-             * Thanks.
-             */
+    /**
+     * Look at the registers of a state before any of them are loaded, so a
+     * broken state leaves the cpu as it was
+     * 
+     * @param in
+     * @param start Where PC is, the body starts with PC, I, the timers and sp
+     * @throws IllegalArgumentException If PC, I, sp or a return address points
+     *                                  outside memory or the stack
+     */
+    private void checkState(ByteBuffer in, int start) {
+        int statePC = in.getShort(start) & 0xFFFF;
+        int stateI = in.getInt(start + 2);
+        int stateSp = in.get(start + 8) & 0xFF;
+        if (statePC > memory.length - 2)
+            throw new IllegalArgumentException(String.format("Save state PC %04x is outside memory", statePC));
+        if (stateI < 0 || stateI >= memory.length)
+            throw new IllegalArgumentException(String.format("Save state I %04x is outside memory", stateI));
+        if (stateSp > STACK_DEPTH)
+            throw new IllegalArgumentException("Save state stack pointer " + stateSp + " is past the stack");
+        // After sp, wait register, flags and V
+        int stackStart = start + 9 + 1 + 1 + 16;
+        for (int index = 0; index < stateSp; index++) {
+            int address = in.getShort(stackStart + index * 2) & 0xFFFF;
+            if (address > memory.length - 2)
+                throw new IllegalArgumentException(
+                        String.format("Save state return address %04x is outside memory", address));
+        }
+    }
 
-            for (int i = 0; i < rom.length; i++) {
-                memory[i + 0x200] = rom[i] & 0xFF;
+    /**
+     * Hash of everything a program can see: registers, timers, stack,
+     * memory and the screen. Two runs that agree on it agree on the lot.
+     * 
+     * @return
+     */
+    public int stateHash() {
+        int hash = PC;
+        hash = hash * 31 + i;
+        hash = hash * 31 + (delayTimer << 8 | soundTimer);
+        hash = hash * 31 + sp;
+        for (int index = 0; index < v.length; index++) {
+            hash = hash * 31 + v[index];
+        }
+        for (int index = 0; index < sp; index++) {
+            hash = hash * 31 + stack[index];
+        }
+        for (int index = 0; index < memory.length; index++) {
+            hash = hash * 31 + memory[index];
+        }
+        int words = frameBuffer.isHires() ? 2 : 1;
+        for (int plane = 0; plane < frameBuffer.getPlanesUsed(); plane++) {
+            for (int y = 0; y < frameBuffer.getHeight(); y++) {
+                for (int word = 0; word < words; word++) {
+                    hash = hash * 31 + Long.hashCode(frameBuffer.getRow(plane, y, word));
+                }
+            }
+        }
+        if (platform != Platform.CHIP8) {
+            hash = hash * 31 + (frameBuffer.isHires() ? 1 : 0) + frameBuffer.getSelectedPlanes() * 2;
+            for (int index = 0; index < flags.length; index++) {
+                hash = hash * 31 + flags[index];
             }
+        }
+        return hash;
+    }
+
+    /**
+     * Is the rom still in memory as it was loaded
+     * 
+     * @return
+     */
+    private boolean romInMemory() {
+        for (int index = 0; index < rom.length; index++) {
+            if (memory[index + 0x200] != (rom[index] & 0xFF))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * The rom last loaded, null if none
+     * 
+     * @return
+     */
+    public byte[] getRom() {
+        return rom;
+    }
+
+    /**
+     * Largest rom that fits between 0x200 and the end of memory
+     * 
+     * @return
+     */
+    public int getMaxRomSize() {
+        return platform.getMemorySize() - 0x200;
+    }
+
+    /**
+     * Copy a rom image into memory at 0x200, with the fonts below it.
+     * 
+     * @param rom Rom bytes
+     * @throws IllegalArgumentException If it doesn't fit, see getMaxRomSize()
+     */
+    public void loadRom(byte[] rom) {
+        if (rom.length > getMaxRomSize())
+            throw new IllegalArgumentException(
+                    "Rom is " + rom.length + " bytes, at most " + getMaxRomSize() + " fit in memory");
+        RomLoadEvent event = Jfr.isActive() ? new RomLoadEvent() : null;
+        if (event != null)
+            event.begin();
+        // Start from power on, another rom may have run before
+        memory = new int[platform.getMemorySize()];
+        Fonts.load(memory);
+        PC = 0x200;
+        i = 0;
+        Arrays.fill(v, 0);
+        delayTimer = 0;
+        soundTimer = 0;
+        frameBuffer.reset();
+        pitch = DEFAULT_PITCH;
+        Arrays.fill(audioPattern, 0);
+        sp = 0;
+        status = Status.SUCCESS;
+        keyboardPoll = false;
+        keyWaitEvent = null;
+        idle = false;
+        decodeCache.clear();
+        jit.clear();
+        this.rom = rom;
+
+        /**
+         * To any dev reading this:
+         * Due to persistent problems with how Java handles bytes, everything is now int
+         * Thanks.
+         */
+
+        for (int i = 0; i < rom.length; i++) {
+            memory[i + 0x200] = rom[i] & 0xFF;
+        }
+
+        if (interpreter == Interpreter.AOT)
+            preloadCompiledRom();
 
-            inputStream.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (event != null && event.isEnabled()) {
+            event.size = rom.length;
+            event.interpreter = interpreter.name();
+            event.commit();
         }
     }
 
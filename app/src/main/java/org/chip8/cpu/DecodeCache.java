@@ -0,0 +1,85 @@
+package org.chip8.cpu;
+
+import java.util.Arrays;
+
+/**
+ * Decoded instructions for every even address in memory.
+ * The first time an address runs its opcode is fetched and looked up in the
+ * DispatchTable, after that it comes straight from here until something writes
+ * over it.
+ */
+public class DecodeCache {
+
+    private final Instruction[] entries;
+    private final Instruction[] dispatchTable;
+    private long hits, misses, invalidations;
+
+    /**
+     * @param memorySize
+     * @param dispatchTable See DispatchTable.forPlatform()
+     */
+    DecodeCache(int memorySize, Instruction[] dispatchTable) {
+        entries = new Instruction[memorySize / 2];
+        this.dispatchTable = dispatchTable;
+    }
+
+    /**
+     * Get the instruction at pc, decoding and remembering it if needed.
+     * Odd addresses are never cached, they are rare enough to decode every time.
+     * 
+     * @param memory
+     * @param pc
+     * @return
+     */
+    Instruction get(int[] memory, int pc) {
+        if ((pc & 1) == 0) {
+            Instruction instruction = entries[pc >> 1];
+            if (instruction != null) {
+                hits++;
+                return instruction;
+            }
+        }
+        misses++;
+        Instruction instruction = dispatchTable[((memory[pc] & 0xFF) << 8) | (memory[pc + 1] & 0xFF)];
+        if ((pc & 1) == 0)
+            entries[pc >> 1] = instruction;
+        return instruction;
+    }
+
+    /**
+     * Forget the instruction that covers address
+     * 
+     * @param address Address that was written to
+     */
+    void invalidate(int address) {
+        int index = address >> 1;
+        if (entries[index] != null) {
+            entries[index] = null;
+            invalidations++;
+        }
+    }
+
+    /**
+     * Forget everything, e.g. when a new rom is loaded
+     */
+    void clear() {
+        Arrays.fill(entries, null);
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d misses=%d invalidations=%d", hits, misses, invalidations);
+    }
+}
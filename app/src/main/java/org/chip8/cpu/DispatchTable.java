@@ -0,0 +1,218 @@
+package org.chip8.cpu;
+
+/**
+ * Every one of the 65536 possible opcodes decoded once, up front.
+ * Each entry is a handler with its operands already pulled out, so running an
+ * instruction is just a lookup and a call. Platforms decode some opcodes
+ * differently, each gets its own table the first time it is used.
+ */
+final class DispatchTable {
+
+    private static final Instruction UNKNOWN = Cpu::unknownOpcode;
+    private static final Instruction NOP = cpu -> {
+    };
+
+    /**
+     * Built the first time anyone asks for them, by Platform.ordinal()
+     */
+    private static final Instruction[][] TABLES = new Instruction[Platform.values().length][];
+
+    private DispatchTable() {
+    }
+
+    /**
+     * The table for a platform, indexed by opcode
+     * 
+     * @param platform
+     * @return
+     */
+    static Instruction[] forPlatform(Platform platform) {
+        synchronized (TABLES) {
+            if (TABLES[platform.ordinal()] == null)
+                TABLES[platform.ordinal()] = build(platform);
+            return TABLES[platform.ordinal()];
+        }
+    }
+
+    private static Instruction[] build(Platform platform) {
+        Instruction[] table = new Instruction[0x10000];
+        for (int opcode = 0; opcode < table.length; opcode++) {
+            table[opcode] = decode(opcode, platform);
+        }
+        return table;
+    }
+
+    /**
+     * Decode a single opcode into its handler
+     * 
+     * @param opcode
+     * @param platform
+     * @return
+     */
+    static Instruction decode(int opcode, Platform platform) {
+        int x = (opcode >> 8) & 0xF;
+        int y = (opcode >> 4) & 0xF;
+        int n = opcode & 0xF;
+        int nn = opcode & 0xFF;
+        int nnn = opcode & 0xFFF;
+
+        switch (opcode >> 12) {
+            case 0x0:
+                if (opcode == 0x00E0)
+                    return Cpu::clearDisplay;
+                if (opcode == 0x00EE)
+                    return Cpu::returnFromSubRoutine;
+                if (platform != Platform.CHIP8)
+                    return decodeSuperChip0x0(opcode, platform);
+                // Call (0x0NNN) is ignored
+                return NOP;
+            case 0x1:
+                return cpu -> cpu.jump(nnn);
+            case 0x2:
+                return cpu -> cpu.subRoutine(nnn);
+            case 0x3:
+                return cpu -> cpu.skipEqual(x, nn);
+            case 0x4:
+                return cpu -> cpu.skipNotEqual(x, nn);
+            case 0x5:
+                if (platform == Platform.XOCHIP && n == 0x2)
+                    return cpu -> cpu.saveRange(x, y);
+                if (platform == Platform.XOCHIP && n == 0x3)
+                    return cpu -> cpu.loadRange(x, y);
+                return cpu -> cpu.skipEqualRegister(x, y);
+            case 0x6:
+                return cpu -> cpu.set(x, nn);
+            case 0x7:
+                return cpu -> cpu.add(x, nn);
+            case 0x8:
+                return decode0x8(x, y, n);
+            case 0x9:
+                return cpu -> cpu.skipNotEqualRegister(x, y);
+            case 0xA:
+                return cpu -> cpu.setAddress(nnn);
+            case 0xB:
+                return cpu -> cpu.jumpTo(nnn);
+            case 0xC:
+                return cpu -> cpu.andRandom(x, nn);
+            case 0xD:
+                return cpu -> cpu.draw(x, y, n);
+            case 0xE:
+                if (nn == 0x9E)
+                    return cpu -> cpu.skipKeyPressed(x);
+                if (nn == 0xA1)
+                    return cpu -> cpu.skipKeyNotPressed(x);
+                return UNKNOWN;
+            default:
+                if (platform != Platform.CHIP8) {
+                    Instruction instruction = decodeSuperChip0xF(opcode, x, nn, platform);
+                    if (instruction != null)
+                        return instruction;
+                }
+                return decode0xF(x, nn);
+        }
+    }
+
+    /**
+     * Scrolling, exit and resolution, anything else is still an ignored call
+     */
+    private static Instruction decodeSuperChip0x0(int opcode, Platform platform) {
+        int n = opcode & 0xF;
+        if ((opcode & 0xFFF0) == 0x00C0)
+            return cpu -> cpu.scrollDown(n);
+        if ((opcode & 0xFFF0) == 0x00D0 && platform == Platform.XOCHIP)
+            return cpu -> cpu.scrollUp(n);
+        switch (opcode) {
+            case 0x00FB:
+                return Cpu::scrollRight;
+            case 0x00FC:
+                return Cpu::scrollLeft;
+            case 0x00FD:
+                return Cpu::exit;
+            case 0x00FE:
+                return cpu -> cpu.setHires(false);
+            case 0x00FF:
+                return cpu -> cpu.setHires(true);
+            default:
+                return NOP;
+        }
+    }
+
+    /**
+     * FX opcodes Super-Chip and XO-Chip add
+     * 
+     * @return null if it is a plain Chip8 one
+     */
+    private static Instruction decodeSuperChip0xF(int opcode, int x, int nn, Platform platform) {
+        switch (nn) {
+            case 0x30:
+                return cpu -> cpu.setiBigSpriteLocation(x);
+            case 0x75:
+                return cpu -> cpu.saveFlags(x);
+            case 0x85:
+                return cpu -> cpu.loadFlags(x);
+            default:
+                break;
+        }
+        if (platform != Platform.XOCHIP)
+            return null;
+        if (opcode == 0xF000)
+            return Cpu::loadLongAddress;
+        if (opcode == 0xF002)
+            return Cpu::loadAudioPattern;
+        if (nn == 0x01)
+            return cpu -> cpu.selectPlanes(x);
+        if (nn == 0x3A)
+            return cpu -> cpu.setPitch(x);
+        return null;
+    }
+
+    private static Instruction decode0x8(int x, int y, int n) {
+        switch (n) {
+            case 0x0:
+                return cpu -> cpu.setVxToVy(x, y);
+            case 0x1:
+                return cpu -> cpu.orVxVy(x, y);
+            case 0x2:
+                return cpu -> cpu.andVxVy(x, y);
+            case 0x3:
+                return cpu -> cpu.xorVxVy(x, y);
+            case 0x4:
+                return cpu -> cpu.addVxVy(x, y);
+            case 0x5:
+                return cpu -> cpu.subVxVy(x, y);
+            case 0x6:
+                return cpu -> cpu.shiftRight(x, y);
+            case 0x7:
+                return cpu -> cpu.subVyVx(x, y);
+            case 0xE:
+                return cpu -> cpu.shiftLeft(x, y);
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    private static Instruction decode0xF(int x, int nn) {
+        switch (nn) {
+            case 0x07:
+                return cpu -> cpu.setvxTimerDelay(x);
+            case 0x0A:
+                return cpu -> cpu.waitForKeyPress(x);
+            case 0x15:
+                return cpu -> cpu.setDelayTimer(x);
+            case 0x18:
+                return cpu -> cpu.setSoundTimer(x);
+            case 0x1E:
+                return cpu -> cpu.iaddVx(x);
+            case 0x29:
+                return cpu -> cpu.setiSpriteLocation(x);
+            case 0x33:
+                return cpu -> cpu.setBcd(x);
+            case 0x55:
+                return cpu -> cpu.storeV0toVxInMemory(x);
+            case 0x65:
+                return cpu -> cpu.readV0toVxFromMemory(x);
+            default:
+                return UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package org.chip8.cpu;
+
+import java.util.Arrays;
+
+/**
+ * The Chip8 screen: 64x32, or 128x64 in Super-Chip's hi-res mode, with up to
+ * two bit planes for XO-Chip.
+ * Each row of a plane is packed into two longs, pixel x is bit (63 - x) of the
+ * first and bit (127 - x) of the second. Lo-res only uses the first, so a
+ * whole sprite row can still be XORed and collision checked in one go, and a
+ * hi-res one in two. Scrolling is shifting longs around.
+ * The version goes up with every change, so the screen only needs to be
+ * copied when something was actually drawn.
+ */
+public class FrameBuffer {
+
+    public static final int WIDTH = 64, HEIGHT = 32;
+    public static final int HIRES_WIDTH = 128, HIRES_HEIGHT = 64;
+    public static final int PLANES = 2;
+
+    /**
+     * Longs copyRows() can write, both planes in hi-res
+     */
+    public static final int MAX_WORDS = PLANES * HIRES_HEIGHT * 2;
+
+    /**
+     * One array per plane, row y is at 2y and 2y + 1, leftmost pixel in the
+     * highest bit
+     */
+    private final long[][] planes = new long[PLANES][HIRES_HEIGHT * 2];
+
+    private boolean hires = false;
+    /**
+     * Planes drawing, clearing and scrolling apply to, bit p for plane p
+     */
+    private int selectedPlanes = 1;
+    /**
+     * 2 once the second plane has been selected, until the next reset()
+     */
+    private int planesUsed = 1;
+
+    /**
+     * Goes up every time the screen changes
+     */
+    private long version;
+
+    /**
+     * XOR a sprite row onto row y of a plane starting at column x.
+     * Pixels that go off the right edge wrap around to the left, rows off the
+     * bottom wrap around to the top.
+     *
+     * @param plane
+     * @param x      Column, taken mod the width
+     * @param y      Row, taken mod the height
+     * @param sprite Sprite bits, leftmost pixel in bit (width - 1)
+     * @param width  8, or 16 for Super-Chip sprites
+     * @return true if any pixel that was on got turned off, which is a collision
+     */
+    boolean drawSpriteRow(int plane, int x, int y, int sprite, int width) {
+        long bits = (sprite & ((1L << width) - 1)) << (64 - width);
+        if (bits == 0)
+            return false;
+        long[] rows = planes[plane];
+        if (!hires) {
+            // Rotating handles the wrap around for free, only the low 6 bits of x count.
+            bits = Long.rotateRight(bits, x);
+            int index = (y & (HEIGHT - 1)) * 2;
+            long row = rows[index];
+            rows[index] = row ^ bits;
+            version++;
+            return (row & bits) != 0;
+        }
+
+        // Rotate the 128 bit row, a rotation by 64 swaps the halves
+        long left = bits, right = 0;
+        int shift = x & (HIRES_WIDTH - 1);
+        if (shift >= 64) {
+            right = left;
+            left = 0;
+            shift -= 64;
+        }
+        if (shift != 0) {
+            long spill = right << (64 - shift);
+            right = (right >>> shift) | (left << (64 - shift));
+            left = (left >>> shift) | spill;
+        }
+        int index = (y & (HIRES_HEIGHT - 1)) * 2;
+        long rowLeft = rows[index], rowRight = rows[index + 1];
+        rows[index] = rowLeft ^ left;
+        rows[index + 1] = rowRight ^ right;
+        version++;
+        return ((rowLeft & left) | (rowRight & right)) != 0;
+    }
+
+    /**
+     * Turn every pixel of the selected planes off
+     */
+    void clear() {
+        for (int plane = 0; plane < PLANES; plane++) {
+            if ((selectedPlanes >> plane & 1) != 0)
+                Arrays.fill(planes[plane], 0);
+        }
+        changedAll();
+    }
+
+    /**
+     * Back to a blank lo-res screen drawing on the first plane, as at power on
+     */
+    void reset() {
+        for (long[] rows : planes) {
+            Arrays.fill(rows, 0);
+        }
+        hires = false;
+        selectedPlanes = 1;
+        planesUsed = 1;
+        changedAll();
+    }
+
+    /**
+     * Switch between 64x32 and 128x64, which clears the screen
+     *
+     * @param hires
+     */
+    void setHires(boolean hires) {
+        this.hires = hires;
+        for (long[] rows : planes) {
+            Arrays.fill(rows, 0);
+        }
+        changedAll();
+    }
+
+    /**
+     * Choose the planes drawing, clearing and scrolling apply to (XO-Chip
+     * FN01)
+     *
+     * @param mask Bit p for plane p, 0 draws nothing
+     */
+    void selectPlanes(int mask) {
+        selectedPlanes = mask & ((1 << PLANES) - 1);
+        if (selectedPlanes > 1)
+            planesUsed = PLANES;
+    }
+
+    int getSelectedPlanes() {
+        return selectedPlanes;
+    }
+
+    /**
+     * Move the selected planes down by n rows, rows scrolled in are blank
+     *
+     * @param n
+     */
+    void scrollDown(int n) {
+        int height = getHeight();
+        n = Math.min(n, height);
+        for (int plane = 0; plane < PLANES; plane++) {
+            if ((selectedPlanes >> plane & 1) == 0)
+                continue;
+            long[] rows = planes[plane];
+            System.arraycopy(rows, 0, rows, n * 2, (height - n) * 2);
+            Arrays.fill(rows, 0, n * 2, 0);
+        }
+        changedAll();
+    }
+
+    /**
+     * Move the selected planes up by n rows, rows scrolled in are blank
+     *
+     * @param n
+     */
+    void scrollUp(int n) {
+        int height = getHeight();
+        n = Math.min(n, height);
+        for (int plane = 0; plane < PLANES; plane++) {
+            if ((selectedPlanes >> plane & 1) == 0)
+                continue;
+            long[] rows = planes[plane];
+            System.arraycopy(rows, n * 2, rows, 0, (height - n) * 2);
+            Arrays.fill(rows, (height - n) * 2, height * 2, 0);
+        }
+        changedAll();
+    }
+
+    /**
+     * Move the selected planes right by n pixels (less than 64), pixels going
+     * off the edge are lost
+     *
+     * @param n
+     */
+    void scrollRight(int n) {
+        int height = getHeight();
+        for (int plane = 0; plane < PLANES; plane++) {
+            if ((selectedPlanes >> plane & 1) == 0)
+                continue;
+            long[] rows = planes[plane];
+            for (int index = 0; index < height * 2; index += 2) {
+                if (hires)
+                    rows[index + 1] = (rows[index + 1] >>> n) | (rows[index] << (64 - n));
+                rows[index] >>>= n;
+            }
+        }
+        changedAll();
+    }
+
+    /**
+     * Move the selected planes left by n pixels (less than 64), pixels going
+     * off the edge are lost
+     *
+     * @param n
+     */
+    void scrollLeft(int n) {
+        int height = getHeight();
+        for (int plane = 0; plane < PLANES; plane++) {
+            if ((selectedPlanes >> plane & 1) == 0)
+                continue;
+            long[] rows = planes[plane];
+            for (int index = 0; index < height * 2; index += 2) {
+                if (hires) {
+                    rows[index] = (rows[index] << n) | (rows[index + 1] >>> (64 - n));
+                    rows[index + 1] <<= n;
+                } else
+                    rows[index] <<= n;
+            }
+        }
+        changedAll();
+    }
+
+    private void changedAll() {
+        version++;
+    }
+
+    /**
+     * Replace one long of a row, e.g. when a save state is loaded
+     *
+     * @param plane
+     * @param y
+     * @param word 0 for pixels 0-63, 1 for 64-127
+     * @param row  Packed like getRow()
+     */
+    void setRow(int plane, int y, int word, long row) {
+        planes[plane][y * 2 + word] = row;
+        version++;
+    }
+
+    /**
+     * Put back the mode a save state was taken in, without clearing anything
+     *
+     * @param hires
+     * @param selectedPlanes
+     * @param planesUsed
+     */
+    void setMode(boolean hires, int selectedPlanes, int planesUsed) {
+        this.hires = hires;
+        this.selectedPlanes = selectedPlanes & ((1 << PLANES) - 1);
+        this.planesUsed = planesUsed == PLANES ? PLANES : 1;
+        changedAll();
+    }
+
+    public boolean isPixelOn(int x, int y) {
+        return getPixel(x, y) != 0;
+    }
+
+    /**
+     * @param x
+     * @param y
+     * @return Bit p set if the pixel is on in plane p
+     */
+    public int getPixel(int x, int y) {
+        int pixel = 0;
+        for (int plane = 0; plane < PLANES; plane++) {
+            if ((planes[plane][y * 2 + (x >> 6)] << x) < 0)
+                pixel |= 1 << plane;
+        }
+        return pixel;
+    }
+
+    /**
+     * Part of a row packed into a long, pixel x is bit (63 - x) of word 0
+     * and bit (127 - x) of word 1
+     *
+     * @param plane
+     * @param y
+     * @param word
+     * @return
+     */
+    public long getRow(int plane, int y, int word) {
+        return planes[plane][y * 2 + word];
+    }
+
+    /**
+     * Copy the rows in use, plane by plane and row by row, one long per row
+     * in lo-res and two in hi-res. A lo-res single plane screen is 32 longs,
+     * the way it always was.
+     *
+     * @param target At least MAX_WORDS long
+     * @return Longs written
+     */
+    public int copyRows(long[] target) {
+        int height = getHeight();
+        int at = 0;
+        for (int plane = 0; plane < planesUsed; plane++) {
+            long[] rows = planes[plane];
+            if (hires) {
+                System.arraycopy(rows, 0, target, at, height * 2);
+                at += height * 2;
+            } else {
+                for (int index = 0; index < height * 2; index += 2) {
+                    target[at++] = rows[index];
+                }
+            }
+        }
+        return at;
+    }
+
+    public boolean isHires() {
+        return hires;
+    }
+
+    public int getWidth() {
+        return hires ? HIRES_WIDTH : WIDTH;
+    }
+
+    public int getHeight() {
+        return hires ? HIRES_HEIGHT : HEIGHT;
+    }
+
+    /**
+     * Planes that may hold something, 1 unless XO-Chip selected the second
+     *
+     * @return
+     */
+    public int getPlanesUsed() {
+        return planesUsed;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,9 @@
+package org.chip8.cpu;
+
+/**
+ * A single decoded instruction, operands included.
+ */
+@FunctionalInterface
+interface Instruction {
+    void execute(Cpu cpu);
+}
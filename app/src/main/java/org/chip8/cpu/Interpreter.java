@@ -0,0 +1,31 @@
+package org.chip8.cpu;
+
+/**
+ * The ways the Cpu can decode and dispatch instructions.
+ */
+public enum Interpreter {
+    /**
+     * Split the opcode into nibbles and switch on them every time
+     */
+    SWITCH,
+    /**
+     * Look the opcode up in a table of handlers with the operands already decoded
+     */
+    TABLE,
+    /**
+     * Like TABLE, but remember the decoded instruction for each address so the
+     * opcode does not have to be fetched again. Writes to memory drop the
+     * affected entries so self modifying code still works.
+     */
+    CACHED,
+    /**
+     * Compile hot basic blocks to JVM bytecode, interpret everything else like
+     * CACHED. Only pays off through Cpu.run(), tick() always interprets.
+     */
+    JIT,
+    /**
+     * Like JIT, but every block reachable from the start of the rom is compiled
+     * before it runs and kept on disk, keyed by a hash of the rom, for next time.
+     */
+    AOT
+}
@@ -0,0 +1,177 @@
+package org.chip8.cpu;
+
+/**
+ * Compiles hot blocks of Chip8 code to JVM bytecode and runs them.
+ * Anything that is not compiled, or not worth compiling yet, goes through the
+ * normal interpreter one instruction at a time.
+ */
+public class Jit {
+
+    /**
+     * How many times an address has to be reached before its block is compiled
+     */
+    static final int COMPILE_THRESHOLD = 16;
+
+    /**
+     * Marks an address whose block could not be compiled
+     */
+    private static final int NOT_COMPILABLE = Integer.MIN_VALUE;
+
+    private final Platform platform;
+    private final CompiledBlock[] blocks;
+    private final int[] blockLengths;
+    private final int[] heat;
+
+    /**
+     * How many compiled blocks cover each address, so memory writes can tell
+     * quickly whether they hit compiled code
+     */
+    private final short[] coverage;
+
+    private long compiled, preloaded, invalidated, compiledInstructions;
+
+    Jit(int memorySize, Platform platform) {
+        this.platform = platform;
+        blocks = new CompiledBlock[memorySize];
+        blockLengths = new int[memorySize];
+        heat = new int[memorySize];
+        coverage = new short[memorySize];
+    }
+
+    /**
+     * Execute up to cycles instructions, see Cpu.run()
+     *
+     * @param cpu
+     * @param cycles
+     * @return Number of instructions actually executed
+     */
+    int run(Cpu cpu, int cycles) {
+        int executed = 0;
+        while (executed < cycles && cpu.canExecute()) {
+            int pc = cpu.getPC();
+            if (pc < blocks.length && !cpu.isTracing()) {
+                CompiledBlock block = blocks[pc];
+                if (block == null && ++heat[pc] == COMPILE_THRESHOLD)
+                    block = compile(cpu.getMemory(), pc);
+                if (block != null && blockLengths[pc] <= cycles - executed) {
+                    int result = block.execute(cpu, cpu.getV());
+                    int count = result >>> 16;
+                    cpu.setPC(result & 0xFFFF);
+                    executed += count;
+                    compiledInstructions += count;
+                    continue;
+                }
+            }
+            cpu.tick();
+            executed++;
+        }
+        return executed;
+    }
+
+    private CompiledBlock compile(int[] memory, int pc) {
+        BlockCompiler.Block block = BlockCompiler.scan(memory, pc, platform);
+        if (block.length() == 0) {
+            heat[pc] = NOT_COMPILABLE;
+            return null;
+        }
+        CompiledBlock compiledBlock = BlockCompiler.compile(block);
+        install(block, compiledBlock);
+        compiled++;
+        return compiledBlock;
+    }
+
+    private void install(BlockCompiler.Block block, CompiledBlock compiledBlock) {
+        install(block.start, block.length(), compiledBlock);
+    }
+
+    private void install(int start, int length, CompiledBlock compiledBlock) {
+        blocks[start] = compiledBlock;
+        blockLengths[start] = length;
+        for (int address = start; address < start + length * 2; address++) {
+            coverage[address]++;
+        }
+    }
+
+    /**
+     * Install every block of a rom compiled ahead of time. They are treated
+     * like any other compiled block, so writes over them still drop them.
+     *
+     * @param program
+     */
+    void preload(AotProgram program) {
+        String table = program.blocks();
+        for (int index = 0; index < table.length(); index += 2) {
+            int start = table.charAt(index);
+            int length = table.charAt(index + 1);
+            install(start, length, (cpu, v) -> program.execute(cpu, v, start));
+            preloaded++;
+        }
+    }
+
+    /**
+     * Drop every compiled block that covers address
+     *
+     * @param address Address that was written to
+     */
+    void invalidate(int address) {
+        heat[address] = 0;
+        if (address > 0)
+            heat[address - 1] = 0;
+        if (coverage[address] == 0)
+            return;
+        int first = Math.max(0, address - BlockCompiler.MAX_BLOCK * 2 + 1);
+        for (int start = first; start <= address; start++) {
+            if (blocks[start] != null && start + blockLengths[start] * 2 > address) {
+                for (int covered = start; covered < start + blockLengths[start] * 2; covered++) {
+                    coverage[covered]--;
+                }
+                blocks[start] = null;
+                heat[start] = 0;
+                invalidated++;
+            }
+        }
+    }
+
+    /**
+     * Forget everything, e.g. when a new rom is loaded
+     */
+    void clear() {
+        for (int address = 0; address < blocks.length; address++) {
+            blocks[address] = null;
+            heat[address] = 0;
+            coverage[address] = 0;
+        }
+    }
+
+    /**
+     * How many compiled blocks cover address
+     *
+     * @param address
+     * @return
+     */
+    int getCoverage(int address) {
+        return coverage[address];
+    }
+
+    public long getCompiledBlocks() {
+        return compiled;
+    }
+
+    public long getPreloadedBlocks() {
+        return preloaded;
+    }
+
+    public long getInvalidatedBlocks() {
+        return invalidated;
+    }
+
+    public long getCompiledInstructions() {
+        return compiledInstructions;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("blocks=%d preloaded=%d invalidated=%d compiledInstructions=%d", compiled, preloaded,
+                invalidated, compiledInstructions);
+    }
+}
@@ -0,0 +1,100 @@
+package org.chip8.cpu;
+
+import java.util.BitSet;
+
+/**
+ * Which machine a rom was written for
+ */
+public enum Platform {
+    CHIP8(4096, 11),
+    /**
+     * Super-Chip, adds a 128x64 mode, scrolling and 16x16 sprites. BNNN jumps
+     * to XNN + VX.
+     */
+    SCHIP(4096, 30),
+    /**
+     * XO-Chip, Super-Chip plus 64K of memory, two bit planes and sound. Shifts
+     * read VY and FX55/FX65 move I past what they copied.
+     */
+    XOCHIP(0x10000, 1000);
+
+    private final int memorySize;
+    private final int instructionsPerFrame;
+
+    Platform(int memorySize, int instructionsPerFrame) {
+        this.memorySize = memorySize;
+        this.instructionsPerFrame = instructionsPerFrame;
+    }
+
+    public int getMemorySize() {
+        return memorySize;
+    }
+
+    /**
+     * How fast roms for it usually expect to run
+     *
+     * @return
+     */
+    public int getInstructionsPerFrame() {
+        return instructionsPerFrame;
+    }
+
+    /**
+     * Parse a name as given on the command line
+     *
+     * @param name chip8, schip or xochip, any case
+     * @return
+     * @throws IllegalArgumentException If there is no such platform
+     */
+    public static Platform parse(String name) {
+        return valueOf(name.toUpperCase().replace("-", ""));
+    }
+
+    /**
+     * Guess the platform from the instructions a rom contains. Only code
+     * reachable from 0x200 is looked at (see AotCompiler.findReachable()), so
+     * sprites and other data can't pass for instructions. Code only reached
+     * through BNNN is missed, so this is still a guess.
+     *
+     * @param rom
+     * @return
+     */
+    public static Platform detect(byte[] rom) {
+        // Only fits in XO-Chip's memory
+        if (rom.length > CHIP8.memorySize - 0x200)
+            return XOCHIP;
+        int[] memory = new int[0x200 + rom.length + 4];
+        for (int index = 0; index < rom.length; index++) {
+            memory[0x200 + index] = rom[index] & 0xFF;
+        }
+        // XO-Chip decodes the most, F000 NNNN included
+        BitSet reachable = AotCompiler.findReachable(memory, 0x200 + rom.length, XOCHIP);
+        Platform platform = CHIP8;
+        for (int pc = reachable.nextSetBit(0); pc >= 0; pc = reachable.nextSetBit(pc + 1)) {
+            int opcode = memory[pc] << 8 | memory[pc + 1];
+            int nn = opcode & 0xFF;
+            switch (opcode >> 12) {
+                case 0x0:
+                    if (opcode == 0x00FB || opcode == 0x00FC || opcode == 0x00FD || opcode == 0x00FE
+                            || opcode == 0x00FF || (opcode & 0xFFF0) == 0x00C0)
+                        platform = SCHIP;
+                    else if ((opcode & 0xFFF0) == 0x00D0)
+                        return XOCHIP;
+                    break;
+                case 0x5:
+                    if ((opcode & 0xF) == 0x2 || (opcode & 0xF) == 0x3)
+                        return XOCHIP;
+                    break;
+                case 0xF:
+                    if (opcode == 0xF000 || opcode == 0xF002 || nn == 0x01)
+                        return XOCHIP;
+                    if (nn == 0x30 || nn == 0x75 || nn == 0x85)
+                        platform = SCHIP;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return platform;
+    }
+}
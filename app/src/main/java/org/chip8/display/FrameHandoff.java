@@ -0,0 +1,80 @@
+package org.chip8.display;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.chip8.cpu.FrameBuffer;
+
+/**
+ * Hands finished frames from the emulator thread to the render thread
+ * without either one ever waiting for the other.
+ *
+ * There are three copies of the screen. The emulator writes into its back
+ * copy and swaps it with the middle one, the renderer swaps its front copy
+ * with the middle one whenever the middle one is newer than what it has.
+ * The middle index and a "fresh" bit live in one AtomicInteger, so each side
+ * does one getAndSet per frame. If the emulator publishes faster than the
+ * screen refreshes, frames in between are simply overwritten and the renderer
+ * always gets the newest one.
+ */
+public class FrameHandoff {
+
+    /**
+     * One copy of the screen
+     */
+    public static final class Frame {
+        /**
+         * Packed like FrameBuffer.copyRows()
+         */
+        public final long[] rows = new long[FrameBuffer.MAX_WORDS];
+        public boolean hires;
+        public int planes;
+    }
+
+    private static final int INDEX = 3, FRESH = 4;
+
+    private final Frame[] frames = { new Frame(), new Frame(), new Frame() };
+    /**
+     * Only touched by the emulator thread
+     */
+    private int back = 0;
+    /**
+     * Only touched by the render thread
+     */
+    private int front = 1;
+    private final AtomicInteger middle = new AtomicInteger(2);
+
+    /**
+     * Copy the screen and make it the newest frame. Emulator thread only.
+     *
+     * @param frameBuffer
+     */
+    public void publish(FrameBuffer frameBuffer) {
+        Frame frame = frames[back];
+        frameBuffer.copyRows(frame.rows);
+        frame.hires = frameBuffer.isHires();
+        frame.planes = frameBuffer.getPlanesUsed();
+        back = middle.getAndSet(back | FRESH) & INDEX;
+    }
+
+    /**
+     * Pick up the newest frame if there is one the renderer has not seen.
+     * Render thread only.
+     *
+     * @return true if getFront() changed
+     */
+    public boolean take() {
+        if ((middle.get() & FRESH) == 0)
+            return false;
+        front = middle.getAndSet(front) & INDEX;
+        return true;
+    }
+
+    /**
+     * The frame the renderer holds. Render thread only.
+     *
+     * @return
+     */
+    public Frame getFront() {
+        return frames[front];
+    }
+}
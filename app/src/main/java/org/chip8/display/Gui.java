@@ -8,30 +8,22 @@ import java.awt.FlowLayout;
 import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.ScrollPane;
+import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.image.BufferStrategy;
 import java.awt.image.BufferedImage;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
-import java.io.Writer;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.swing.BoxLayout;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -39,59 +31,155 @@ import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 import javax.swing.filechooser.FileFilter;
 
+import org.chip8.input.Keypad;
+import org.chip8.rom.RomInfo;
+import org.chip8.trace.DebugLog;
+import org.chip8.trace.TraceBuffer;
+
 public class Gui extends JFrame implements KeyListener {
     private final int SCALE = 15;
     private final String DEBUG_FILE = "debug.txt";
-    private BufferedImage gameScreen;
+    private final int DEBUG_LOG_QUEUE = 1 << 16, DEBUG_LOG_KEEP = 3;
+    private final long DEBUG_LOG_MAX_SIZE = 64L << 20;
+    private ScreenImage gameScreen;
     private Canvas gameCanvas, debugCanvas;
     private BufferStrategy bs, debugbs;
     private Graphics g, debugGraphics;
     private final String NO_ROM = "Please insert ROM";
-    private File loadedRom;
+    private final String TITLE = "Chip8 Emulator - 0xRobinman";
+    /**
+     * Rom the menu asked to play, null if none. Taken by the game loop.
+     */
+    private volatile Path romRequest;
+    private JMenu library;
     private ScrollPane debugPane;
     private static final int MAX_LINES = 128;
+    private static final int TRACE_SIZE = 4096;
     private JLabel debugLines[];
     private JPanel debugPanel;
-    private int currentKeyCode;
-    private LinkedList<String> debugText;
-    private File debugFile;
-    private Writer debugWriter;
-    private byte[] fontSet;
-    private HashMap<Integer, Integer> keyMapper;
-    private boolean romInserted = false;
-    private boolean keyPressed = false, pause = false;
-    private boolean debug = false;
-
-    public void setDebug(boolean debug) {
-        this.debug = debug;
-    }
-
-    public int getKeyCode() {
-        return currentKeyCode;
+    private TraceBuffer traceBuffer;
+    /**
+     * Index of the next trace record to go to the debug file
+     */
+    private long traceWritten;
+    private DebugLog debugLog;
+    /**
+     * Chip8 key for each AWT key code, -1 for none
+     */
+    private int[] keyMap;
+    private static final int KEY_CODES = 256;
+    private final Keypad keypad = new Keypad();
+    /**
+     * AWT key codes held down, key listener thread only
+     */
+    private final boolean[] hostKeysDown = new boolean[KEY_CODES];
+    private boolean pause = false;
+    private volatile boolean turbo = false;
+    /**
+     * Save state slot to save to or load from, -1 for none. Taken by the
+     * game loop between frames.
+     */
+    private volatile int saveRequest = -1, loadRequest = -1;
+    private volatile boolean rewinding = false;
+    private JCheckBoxMenuItem turboButton;
+    private boolean debug;
+    private final FrameHandoff frameHandoff = new FrameHandoff();
+
+    public boolean isDebug() {
+        return debug;
     }
 
-    public boolean isKeyPressed() {
-        return keyPressed;
+    /**
+     * The keypad the key listener feeds, poll it once a frame
+     * 
+     * @return
+     */
+    public Keypad getKeypad() {
+        return keypad;
     }
 
     public boolean getPause() {
         return pause;
     }
 
-    private void writeSpriteData() {
-        try (InputStream inputStream = new FileInputStream(loadedRom)) {
-            int romSize = inputStream.available();
-            fontSet = new byte[0x80];
-            if (fontSet.length <= romSize) {
-                inputStream.read(fontSet);
-                inputStream.close();
-                System.out.println("Sprites read");
+    public boolean isTurbo() {
+        return turbo;
+    }
+
+    /**
+     * True while the rewind key (backspace) is held down
+     * 
+     * @return
+     */
+    public boolean isRewinding() {
+        return rewinding;
+    }
+
+    /**
+     * Slot Shift+F1-F8 asked to save to, -1 if none. Clears the request.
+     * 
+     * @return
+     */
+    public int takeSaveRequest() {
+        int slot = saveRequest;
+        saveRequest = -1;
+        return slot;
+    }
+
+    /**
+     * Slot F1-F8 asked to load, -1 if none. Clears the request.
+     * 
+     * @return
+     */
+    public int takeLoadRequest() {
+        int slot = loadRequest;
+        loadRequest = -1;
+        return slot;
+    }
+
+    /**
+     * Rom picked from the menu since the last call, null if none. Clears the
+     * request.
+     * 
+     * @return
+     */
+    public Path takeRomRequest() {
+        Path rom = romRequest;
+        romRequest = null;
+        return rom;
+    }
+
+    /**
+     * Fill the Library menu, any thread
+     * 
+     * @param roms
+     */
+    public void setRomLibrary(List<RomInfo> roms) {
+        SwingUtilities.invokeLater(() -> {
+            library.removeAll();
+            for (RomInfo rom : roms) {
+                JMenuItem item = new JMenuItem(rom.toString());
+                item.addActionListener((ActionEvent e) -> {
+                    romRequest = rom.getPath();
+                });
+                library.add(item);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+            library.setEnabled(!roms.isEmpty());
+        });
+    }
+
+    /**
+     * Fast forward on or off, from the menu or the T key
+     * 
+     * @param turbo
+     */
+    private void setTurbo(boolean turbo) {
+        this.turbo = turbo;
+        turboButton.setSelected(turbo);
+        this.setTitle(TITLE + (turbo ? " (turbo)" : ""));
     }
 
     private JMenuBar getMenu() {
@@ -102,11 +190,12 @@ public class Gui extends JFrame implements KeyListener {
         file.add(openRom);
 
         openRom.addActionListener((ActionEvent e) -> {
-            loadedRom = getInputFile();
-            if (loadedRom != null) {
-                writeSpriteData();
-            }
+            File rom = getInputFile();
+            if (rom != null)
+                romRequest = rom.toPath();
         });
+        library = new JMenu("Library");
+        library.setEnabled(false);
         JMenu flowControl = new JMenu("Flow control");
 
         JMenuItem playButton = new JMenuItem("Play");
@@ -118,19 +207,24 @@ public class Gui extends JFrame implements KeyListener {
         pauseButton.addActionListener((ActionEvent e) -> {
             pause = true;
         });
+        turboButton = new JCheckBoxMenuItem("Turbo (T)");
+        turboButton.addActionListener((ActionEvent e) -> {
+            setTurbo(turboButton.isSelected());
+        });
         flowControl.add(playButton);
         flowControl.add(pauseButton);
+        flowControl.add(turboButton);
 
         menubar.add(file);
+        menubar.add(library);
         menubar.add(flowControl);
         return menubar;
     }
 
-    public boolean romInserted() {
-        return romInserted;
-    }
-
-    public void noRomInsertedScreen() {
+    /**
+     * Render thread only, see Renderer
+     */
+    void noRomInsertedScreen() {
         g = bs.getDrawGraphics();
         g.setColor(Color.BLACK);
         g.fillRect(0, 0, this.getWidth(), this.getHeight());
@@ -143,38 +237,57 @@ public class Gui extends JFrame implements KeyListener {
         bs.show();
     }
 
-    public void renderGame() {
+    /**
+     * Play beep sound effect
+     */
+    public void beep() {
+        Toolkit.getDefaultToolkit().beep();
+    }
+
+    /**
+     * Render thread only, see Renderer
+     */
+    void renderGame() {
         g = bs.getDrawGraphics();
-        g.drawImage(gameScreen, 0, 0, gameCanvas.getWidth(), gameCanvas.getHeight(), null);
+        g.drawImage(gameScreen.getImage(), 0, 0, gameCanvas.getWidth(), gameCanvas.getHeight(), null);
         bs.show();
     }
 
     /**
      * Render the debug screen.
-     * Format $addr $opcode
+     * Only the records that fit on screen are formatted, the ones that scrolled
+     * off go to the debug file. If the cpu ran so far ahead that records were
+     * overwritten before we got to them, the file says how many were missed.
+     * Format $addr $opcode instruction registers
      */
     public void renderDebug() {
         if (!debug)
             return;
+        int lines = Math.min(MAX_LINES, debugCanvas.getHeight() / 12);
+        long count = traceBuffer.getCount();
+        long firstVisible = Math.max(traceBuffer.getFirst(), count - lines);
+        if (debugLog == null)
+            openDebugLog();
+        if (debugLog != null) {
+            if (traceWritten < traceBuffer.getFirst()) {
+                debugLog.missed(traceBuffer.getFirst() - traceWritten);
+                traceWritten = traceBuffer.getFirst();
+            }
+            for (; traceWritten < firstVisible; traceWritten++) {
+                debugLog.record(traceBuffer.getPc(traceWritten), traceBuffer.getOpcode(traceWritten),
+                        traceBuffer.getI(traceWritten), traceBuffer.getRegisters(traceWritten));
+            }
+        }
+
         debugGraphics = debugbs.getDrawGraphics();
         debugGraphics.setColor(Color.BLUE);
         debugGraphics.fillRect(0, 0, debugCanvas.getWidth(), debugCanvas.getHeight());
         debugGraphics.setColor(Color.WHITE);
         debugGraphics.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
-        int i = 0;
-        for (String line : debugText) {
-            debugGraphics.drawString(line, 0, i * 12);
+        int i = 1;
+        for (long index = firstVisible; index < count; index++) {
+            debugGraphics.drawString(traceBuffer.format(index), 0, i * 12);
             i++;
-            if (i * 12 > debugCanvas.getHeight()) {
-                String removed_debug = debugText.removeFirst();
-                try {
-                    debugWriter.write(removed_debug + " \n");
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                i--;
-                break;
-            }
         }
         debugbs.show();
     }
@@ -209,49 +322,38 @@ public class Gui extends JFrame implements KeyListener {
         fileSelect.setAcceptAllFileFilterUsed(false);
 
         if (fileSelect.showOpenDialog(null) == JFileChooser.APPROVE_OPTION) {
-            romInserted = true;
-
             return fileSelect.getSelectedFile();
         }
         return null;
     }
 
-    public File getLoadedRom() {
-        return loadedRom;
-    }
-
     public BufferedImage getGameScreen() {
-        return gameScreen;
+        return gameScreen.getImage();
     }
 
-    public LinkedList<String> getDebugText() {
-        return debugText;
+    /**
+     * The trace shown on the debug screen, attach it to the cpu
+     * 
+     * @return
+     */
+    public TraceBuffer getTraceBuffer() {
+        return traceBuffer;
     }
 
     /**
-     * Clear the debug file automatically generated by the app
+     * Start writing the debug file, replacing the last one. Records are written
+     * on a background thread and dropped rather than slow the game down if it
+     * can't keep up.
      */
-    private void clearDebugFile() {
-        debugFile = new File(DEBUG_FILE);
+    private void openDebugLog() {
         try {
-            if (!debugFile.createNewFile()) {
-                try {
-                    Files.newBufferedWriter(Paths.get(DEBUG_FILE), StandardOpenOption.TRUNCATE_EXISTING);
-                } catch (IOException e) {
-                    System.out.println("File does not exist. Writing file");
-
-                    e.printStackTrace();
-                }
-            }
+            debugLog = new DebugLog(Paths.get(DEBUG_FILE), DEBUG_LOG_QUEUE, DebugLog.Overflow.DROP,
+                    DEBUG_LOG_MAX_SIZE, DEBUG_LOG_KEEP);
         } catch (IOException e) {
-            System.out.println("Could not create new file");
-            e.printStackTrace();
-        }
-        try {
-            debugWriter = new BufferedWriter(new BufferedWriter(new OutputStreamWriter(
-                    new FileOutputStream(DEBUG_FILE), "utf-8")));
-        } catch (UnsupportedEncodingException | FileNotFoundException e) {
+            System.out.println("Could not open " + DEBUG_FILE);
             e.printStackTrace();
+            // Don't try again every frame
+            debug = false;
         }
     }
 
@@ -260,41 +362,48 @@ public class Gui extends JFrame implements KeyListener {
      * 
      * @return
      */
-    private HashMap<Integer, Integer> getMappedKeys() {
-        HashMap<Integer, Integer> keyMapper = new HashMap<>();
-
-        keyMapper.put(KeyEvent.VK_1, 0x1);
-        keyMapper.put(KeyEvent.VK_2, 0x2);
-        keyMapper.put(KeyEvent.VK_3, 0x3);
-        keyMapper.put(KeyEvent.VK_4, 0xC);
-        keyMapper.put(KeyEvent.VK_Q, 0x4);
-        keyMapper.put(KeyEvent.VK_W, 0x5);
-        keyMapper.put(KeyEvent.VK_E, 0x6);
-        keyMapper.put(KeyEvent.VK_R, 0xD);
-        keyMapper.put(KeyEvent.VK_A, 0x7);
-        keyMapper.put(KeyEvent.VK_S, 0x8);
-        keyMapper.put(KeyEvent.VK_D, 0x9);
-        keyMapper.put(KeyEvent.VK_F, 0xE);
-        keyMapper.put(KeyEvent.VK_Z, 0xA);
-        keyMapper.put(KeyEvent.VK_X, 0x0);
-        keyMapper.put(KeyEvent.VK_C, 0xB);
-        keyMapper.put(KeyEvent.VK_V, 0xF);
-        keyMapper.put(KeyEvent.VK_UP, 0x2);
-        keyMapper.put(KeyEvent.VK_DOWN, 0x8);
-        keyMapper.put(KeyEvent.VK_LEFT, 0x4);
-        keyMapper.put(KeyEvent.VK_RIGHT, 0x6);
+    private int[] getMappedKeys() {
+        int[] keyMapper = new int[KEY_CODES];
+        Arrays.fill(keyMapper, -1);
+
+        keyMapper[KeyEvent.VK_1] = 0x1;
+        keyMapper[KeyEvent.VK_2] = 0x2;
+        keyMapper[KeyEvent.VK_3] = 0x3;
+        keyMapper[KeyEvent.VK_4] = 0xC;
+        keyMapper[KeyEvent.VK_Q] = 0x4;
+        keyMapper[KeyEvent.VK_W] = 0x5;
+        keyMapper[KeyEvent.VK_E] = 0x6;
+        keyMapper[KeyEvent.VK_R] = 0xD;
+        keyMapper[KeyEvent.VK_A] = 0x7;
+        keyMapper[KeyEvent.VK_S] = 0x8;
+        keyMapper[KeyEvent.VK_D] = 0x9;
+        keyMapper[KeyEvent.VK_F] = 0xE;
+        keyMapper[KeyEvent.VK_Z] = 0xA;
+        keyMapper[KeyEvent.VK_X] = 0x0;
+        keyMapper[KeyEvent.VK_C] = 0xB;
+        keyMapper[KeyEvent.VK_V] = 0xF;
+        keyMapper[KeyEvent.VK_UP] = 0x2;
+        keyMapper[KeyEvent.VK_DOWN] = 0x8;
+        keyMapper[KeyEvent.VK_LEFT] = 0x4;
+        keyMapper[KeyEvent.VK_RIGHT] = 0x6;
 
         return keyMapper;
 
     }
 
-    public Gui(int width, int height) {
-        loadedRom = null;
-        debugText = new LinkedList<>();
-        clearDebugFile();
-        this.setTitle("Chip8 Emulator - 0xRobinman");
+    /**
+     * @param width
+     * @param height
+     * @param debug  Show the last instructions next to the screen and log them to
+     *               the debug file. The layout is built here, so it can't be
+     *               turned on later
+     */
+    public Gui(int width, int height, boolean debug) {
+        this.debug = debug;
+        traceBuffer = new TraceBuffer(TRACE_SIZE);
+        this.setTitle(TITLE);
         gameCanvas = createCanvas(width, height);
-        gameScreen = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        gameScreen = new ScreenImage();
         gameCanvas.addKeyListener(this);
         debugCanvas = createCanvas(250, height);
 
@@ -320,7 +429,7 @@ public class Gui extends JFrame implements KeyListener {
         if (debug)
             this.update(debugCanvas.getGraphics());
 
-        keyMapper = getMappedKeys();
+        keyMap = getMappedKeys();
         gameCanvas.createBufferStrategy(2);
         bs = gameCanvas.getBufferStrategy();
 
@@ -328,6 +437,16 @@ public class Gui extends JFrame implements KeyListener {
             debugCanvas.createBufferStrategy(2);
             debugbs = debugCanvas.getBufferStrategy();
         }
+        new Renderer(this, frameHandoff, gameScreen).start();
+    }
+
+    /**
+     * Where the emulator publishes finished frames for the render thread
+     * 
+     * @return
+     */
+    public FrameHandoff getFrameHandoff() {
+        return frameHandoff;
     }
 
     /**
@@ -338,24 +457,47 @@ public class Gui extends JFrame implements KeyListener {
      * @return
      */
     private int getMapedKeyCode(int keyCode) {
-        return keyMapper.getOrDefault(keyCode, -1);
+        return keyCode >= 0 && keyCode < KEY_CODES ? keyMap[keyCode] : -1;
     }
 
     @Override
     public void keyPressed(KeyEvent e) {
-        currentKeyCode = getMapedKeyCode(e.getKeyCode());
-        if (currentKeyCode != -1)
-            keyPressed = true;
+        if (e.getKeyCode() == KeyEvent.VK_T) {
+            setTurbo(!turbo);
+            return;
+        }
+        if (e.getKeyCode() == KeyEvent.VK_BACK_SPACE) {
+            rewinding = true;
+            return;
+        }
+        if (e.getKeyCode() >= KeyEvent.VK_F1 && e.getKeyCode() <= KeyEvent.VK_F8) {
+            int slot = e.getKeyCode() - KeyEvent.VK_F1;
+            if (e.isShiftDown())
+                saveRequest = slot;
+            else
+                loadRequest = slot;
+            return;
+        }
+        int keyCode = e.getKeyCode();
+        int key = getMapedKeyCode(keyCode);
+        // Held keys repeat, only the first press counts
+        if (key != -1 && !hostKeysDown[keyCode]) {
+            hostKeysDown[keyCode] = true;
+            keypad.press(key, System.nanoTime());
+        }
     }
 
     @Override
     public void keyReleased(KeyEvent e) {
-        // If a key is released, and it's not the current key, ignore it since another
-        // key is being pressed.
-        int releasedKey = getMapedKeyCode(e.getKeyCode());
-        if (releasedKey == currentKeyCode) {
-            keyPressed = false;
-            currentKeyCode = -1;
+        if (e.getKeyCode() == KeyEvent.VK_BACK_SPACE) {
+            rewinding = false;
+            return;
+        }
+        int keyCode = e.getKeyCode();
+        int key = getMapedKeyCode(keyCode);
+        if (key != -1 && hostKeysDown[keyCode]) {
+            hostKeysDown[keyCode] = false;
+            keypad.release(key, System.nanoTime());
         }
 
     }
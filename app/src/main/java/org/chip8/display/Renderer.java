@@ -0,0 +1,68 @@
+package org.chip8.display;
+
+import java.awt.DisplayMode;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Draws the game screen on its own thread, once per display refresh.
+ *
+ * Every refresh it picks up the newest frame from the FrameHandoff, if there
+ * is a new one, and draws it. A slow bs.show() or a busy window manager only
+ * holds up this thread, the emulator keeps its 60hz.
+ */
+class Renderer implements Runnable {
+
+    private static final int DEFAULT_REFRESH_RATE = 60;
+
+    private final Gui gui;
+    private final FrameHandoff frames;
+    private final ScreenImage screen;
+    private final long refreshNanos;
+
+    /**
+     * @param gui
+     * @param frames
+     * @param screen Only drawn to from the render thread
+     */
+    Renderer(Gui gui, FrameHandoff frames, ScreenImage screen) {
+        this.gui = gui;
+        this.frames = frames;
+        this.screen = screen;
+        int refreshRate = gui.getGraphicsConfiguration().getDevice().getDisplayMode().getRefreshRate();
+        if (refreshRate == DisplayMode.REFRESH_RATE_UNKNOWN)
+            refreshRate = DEFAULT_REFRESH_RATE;
+        refreshNanos = 1_000_000_000L / refreshRate;
+    }
+
+    /**
+     * Start drawing on a new daemon thread
+     */
+    void start() {
+        Thread thread = new Thread(this, "chip8-render");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        boolean drawn = false;
+        long nextRefresh = System.nanoTime();
+        while (true) {
+            if (frames.take()) {
+                screen.update(frames.getFront());
+                gui.renderGame();
+                drawn = true;
+            } else if (!drawn) {
+                // Nothing published yet, no rom is running
+                gui.noRomInsertedScreen();
+            }
+
+            nextRefresh += refreshNanos;
+            long remaining = nextRefresh - System.nanoTime();
+            if (remaining > 0)
+                LockSupport.parkNanos(remaining);
+            else
+                nextRefresh = System.nanoTime();
+        }
+    }
+}
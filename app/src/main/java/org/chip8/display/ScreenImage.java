@@ -0,0 +1,79 @@
+package org.chip8.display;
+
+import java.awt.image.BufferedImage;
+
+import org.chip8.cpu.FrameBuffer;
+
+/**
+ * The game screen as an image, one pixel per Chip8 pixel, scaled up when it
+ * is drawn. There is one image for lo-res and one for hi-res, whichever the
+ * last frame was in is shown. Only rows that changed get copied in.
+ */
+public class ScreenImage {
+    /**
+     * Color for each combination of the two XO-Chip planes, plane 0 in bit 0
+     */
+    private static final int[] COLORS = { 0x000000, 0xFFFFFF, 0x808080, 0xC0C0C0 };
+
+    private final BufferedImage lowres, hires;
+    private BufferedImage shown;
+    private final int[] rowPixels = new int[FrameBuffer.HIRES_WIDTH];
+    /**
+     * What each row of each image shows, both planes, starts all off like the
+     * images. Laid out like FrameBuffer.copyRows() with two planes.
+     */
+    private final long[] lowresRows = new long[FrameBuffer.PLANES * FrameBuffer.HEIGHT];
+    private final long[] hiresRows = new long[FrameBuffer.PLANES * FrameBuffer.HIRES_HEIGHT * 2];
+
+    public ScreenImage() {
+        lowres = new BufferedImage(FrameBuffer.WIDTH, FrameBuffer.HEIGHT, BufferedImage.TYPE_INT_RGB);
+        hires = new BufferedImage(FrameBuffer.HIRES_WIDTH, FrameBuffer.HIRES_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        shown = lowres;
+    }
+
+    /**
+     * Copy the rows that differ from what the image shows now
+     * 
+     * @param frame
+     */
+    public void update(FrameHandoff.Frame frame) {
+        BufferedImage image = frame.hires ? hires : lowres;
+        long[] shownRows = frame.hires ? hiresRows : lowresRows;
+        int height = image.getHeight();
+        int words = frame.hires ? 2 : 1;
+        long[] rows = frame.rows;
+        for (int y = 0; y < height; y++) {
+            boolean changed = false;
+            for (int plane = 0; plane < FrameBuffer.PLANES; plane++) {
+                for (int word = 0; word < words; word++) {
+                    int index = (plane * height + y) * words + word;
+                    long row = plane < frame.planes ? rows[index] : 0;
+                    if (row != shownRows[index]) {
+                        shownRows[index] = row;
+                        changed = true;
+                    }
+                }
+            }
+            if (changed)
+                setRow(image, shownRows, y, words);
+        }
+        shown = image;
+    }
+
+    private void setRow(BufferedImage image, long[] shownRows, int y, int words) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        for (int x = 0; x < width; x++) {
+            int word = x >> 6;
+            long plane0 = shownRows[y * words + word];
+            long plane1 = shownRows[(height + y) * words + word];
+            int color = (int) ((plane0 << x) >>> 63) | (int) ((plane1 << x) >>> 63) << 1;
+            rowPixels[x] = COLORS[color];
+        }
+        image.setRGB(0, y, width, 1, rowPixels, 0, width);
+    }
+
+    public BufferedImage getImage() {
+        return shown;
+    }
+}
@@ -0,0 +1,119 @@
+package org.chip8.input;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The 16 key hex keypad, shared between the thread that gets key events
+ * (AWT) and the thread that runs the cpu.
+ *
+ * Keys held down are one bit each in an atomic mask. Every press and release
+ * also goes into a small single producer, single consumer queue with the
+ * time it happened, so a key tapped between two frames is not lost and key
+ * latency can be measured. The emulator calls poll() once a frame and the
+ * cpu sees that one snapshot for the whole frame.
+ *
+ * press() and release() must all come from one thread, poll() from another
+ * one. Neither ever waits. If the queue is full, events are dropped, but the
+ * mask is still right.
+ */
+public class Keypad {
+
+    public static final int KEYS = 16;
+
+    private static final int QUEUE_SIZE = 64, QUEUE_MASK = QUEUE_SIZE - 1;
+    private static final int PRESSED = 0x10;
+
+    private final AtomicInteger keys = new AtomicInteger();
+
+    // Queue slots are written before head moves past them and read before
+    // tail does, head and tail carry the ordering
+    private final long[] eventTimes = new long[QUEUE_SIZE];
+    private final int[] events = new int[QUEUE_SIZE];
+    private final AtomicLong head = new AtomicLong(), tail = new AtomicLong();
+
+    // Producer only
+    /**
+     * How many host keys hold each key down, several can map to one key
+     */
+    private final int[] held = new int[KEYS];
+
+    // Consumer only
+    private long lastPressAt;
+
+    /**
+     * A host key mapped to key went down
+     *
+     * @param key  0-F
+     * @param when System.nanoTime() of the event
+     */
+    public void press(int key, long when) {
+        if (held[key]++ > 0)
+            return;
+        keys.set(keys.get() | 1 << key);
+        offer(key | PRESSED, when);
+    }
+
+    /**
+     * A host key mapped to key came back up
+     *
+     * @param key  0-F
+     * @param when System.nanoTime() of the event
+     */
+    public void release(int key, long when) {
+        if (held[key] == 0 || --held[key] > 0)
+            return;
+        keys.set(keys.get() & ~(1 << key));
+        offer(key, when);
+    }
+
+    private void offer(int event, long when) {
+        long position = head.get();
+        if (position - tail.get() == QUEUE_SIZE)
+            return;
+        int slot = (int) position & QUEUE_MASK;
+        eventTimes[slot] = when;
+        events[slot] = event;
+        head.lazySet(position + 1);
+    }
+
+    /**
+     * Take the keys for the next frame: the ones held now, plus any that went
+     * down since the last poll even if they are already back up.
+     *
+     * @return Key mask, bit n for key n
+     */
+    public int poll() {
+        int pressed = 0;
+        long pressAt = 0;
+        long position = tail.get();
+        long end = head.get();
+        for (; position < end; position++) {
+            int slot = (int) position & QUEUE_MASK;
+            if ((events[slot] & PRESSED) != 0) {
+                pressed |= 1 << (events[slot] & 0xF);
+                pressAt = eventTimes[slot];
+            }
+        }
+        tail.lazySet(position);
+        lastPressAt = pressAt;
+        return keys.get() | pressed;
+    }
+
+    /**
+     * @return When the newest press taken by the last poll() happened, 0 if it
+     *         took none
+     */
+    public long getLastPressAt() {
+        return lastPressAt;
+    }
+
+    /**
+     * Keys held right now, without touching the queue
+     *
+     * @return
+     */
+    public int getKeys() {
+        return keys.get();
+    }
+}
@@ -0,0 +1,21 @@
+package org.chip8.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A 00E0 screen clear
+ */
+@Name("org.chip8.ClearScreen")
+@Label("Clear Screen")
+@Description("A 00E0 screen clear")
+@Category({ "Chip8", "Display" })
+@Enabled(false)
+@StackTrace(false)
+public class ClearScreenEvent extends Event {
+}
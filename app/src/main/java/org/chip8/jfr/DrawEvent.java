@@ -0,0 +1,34 @@
+package org.chip8.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A DXYN sprite draw
+ */
+@Name("org.chip8.Draw")
+@Label("Draw")
+@Description("A DXYN sprite draw")
+@Category({ "Chip8", "Display" })
+@Enabled(false)
+@StackTrace(false)
+public class DrawEvent extends Event {
+
+    @Label("X")
+    public int x;
+
+    @Label("Y")
+    public int y;
+
+    @Label("Height")
+    public int height;
+
+    @Label("Collision")
+    @Description("A pixel that was on got turned off, VF was set")
+    public boolean collision;
+}
@@ -0,0 +1,30 @@
+package org.chip8.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One emulated 60hz frame, from its first instruction to its timer tick
+ */
+@Name("org.chip8.Frame")
+@Label("Frame")
+@Description("One emulated frame, its instructions and its timer tick")
+@Category("Chip8")
+@Enabled(false)
+@StackTrace(false)
+public class FrameEvent extends Event {
+
+    @Label("Frame")
+    public long frame;
+
+    @Label("Instructions")
+    public int instructions;
+
+    @Label("Turbo")
+    public boolean turbo;
+}
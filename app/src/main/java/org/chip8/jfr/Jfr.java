@@ -0,0 +1,25 @@
+package org.chip8.jfr;
+
+import jdk.jfr.FlightRecorder;
+
+/**
+ * Checks whether it is worth creating an event at all.
+ *
+ * All the emulator's events are off by default (turn them on with
+ * -XX:StartFlightRecording:settings=... or in JMC). Until flight recorder
+ * has started, creating one would still allocate, and the cpu must not
+ * allocate on its hot path, so every event is created behind isActive().
+ * Once it says yes, the usual event.isEnabled() decides.
+ */
+public final class Jfr {
+
+    private Jfr() {
+    }
+
+    /**
+     * @return true once a flight recording has been started in this JVM
+     */
+    public static boolean isActive() {
+        return FlightRecorder.isInitialized();
+    }
+}
@@ -0,0 +1,27 @@
+package org.chip8.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The cpu stopped on FX0A until a key was pressed
+ */
+@Name("org.chip8.KeyWait")
+@Label("Key Wait")
+@Description("FX0A stopped the cpu until a key was pressed")
+@Category("Chip8")
+@Enabled(false)
+@StackTrace(false)
+public class KeyWaitEvent extends Event {
+
+    @Label("Register")
+    public int register;
+
+    @Label("Key")
+    public int key;
+}
@@ -0,0 +1,28 @@
+package org.chip8.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Loading a rom, including what the interpreter does on load (AOT compiling
+ * or reading its cache)
+ */
+@Name("org.chip8.RomLoad")
+@Label("Rom Load")
+@Description("Loading a rom into the cpu")
+@Category("Chip8")
+@Enabled(false)
+public class RomLoadEvent extends Event {
+
+    @Label("Size")
+    @DataAmount
+    public int size;
+
+    @Label("Interpreter")
+    public String interpreter;
+}
@@ -0,0 +1,25 @@
+package org.chip8.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The delay or sound timer counted down to zero
+ */
+@Name("org.chip8.TimerUnderflow")
+@Label("Timer Underflow")
+@Description("The delay or sound timer reached zero")
+@Category("Chip8")
+@Enabled(false)
+@StackTrace(false)
+public class TimerUnderflowEvent extends Event {
+
+    @Label("Timer")
+    @Description("delay or sound")
+    public String timer;
+}
@@ -0,0 +1,218 @@
+package org.chip8.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Live numbers about the game loop, published as a JMX MBean.
+ *
+ * Only the game loop thread writes. It counts into plain fields, which costs
+ * about as much as the counting itself, and once a second turns them into
+ * rates and percentiles and publishes those through volatile fields. JMX
+ * readers only ever see the published values, so nothing on the hot path is
+ * atomic or locked.
+ */
+public class EmulatorMetrics implements EmulatorMetricsMBean {
+
+    public static final String OBJECT_NAME = "org.chip8:type=EmulatorMetrics";
+
+    private static final long WINDOW_NANOS = 1_000_000_000L;
+
+    /**
+     * Frame times are counted in buckets this wide, the last bucket takes
+     * everything slower
+     */
+    private static final long BUCKET_NANOS = 50_000;
+    private static final int BUCKETS = 2000;
+
+    // Written by the game loop only
+    private long windowStart;
+    private long instructions, frames, presentedFrames, loops;
+    private long frameNanos, emulationNanos, renderNanos;
+    private final int[] frameTimes = new int[BUCKETS];
+    private long keyPressedAt;
+    private long keyLatencyNanos, keyLatencies, maxKeyLatencyNanos;
+    private long totalInstructions, totalFrames;
+
+    // Published once a window
+    private volatile long instructionsPerSecond, framesPerSecond, presentedFramesPerSecond;
+    private volatile long droppedFrames, publishedInstructions, publishedFrames;
+    private volatile double averageFrameTime, p99FrameTime;
+    private volatile double emulationPercent, renderPercent;
+    private volatile double averageKeyLatency, maxKeyLatency;
+
+    /**
+     * Make the metrics visible to JMX clients (jconsole, dashboards...)
+     *
+     * @return false if they could not be registered
+     */
+    public boolean register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+            return true;
+        } catch (JMException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Count a frame that was emulated
+     *
+     * @param instructions Instructions it ran
+     */
+    public void frame(int instructions) {
+        this.instructions += instructions;
+        frames++;
+    }
+
+    /**
+     * A key went down and the frame that just ran saw it
+     *
+     * @param pressedAt System.nanoTime() of the key event
+     */
+    public void keyPressed(long pressedAt) {
+        keyPressedAt = pressedAt;
+    }
+
+    /**
+     * One pass of the game loop is done
+     *
+     * @param start     When it started emulating
+     * @param emulated  When emulating was done and drawing started
+     * @param end       When drawing was done
+     * @param presented Whether a frame was actually drawn
+     * @param dropped   Frames dropped so far
+     */
+    public void loop(long start, long emulated, long end, boolean presented, long dropped) {
+        if (windowStart == 0)
+            windowStart = start;
+        long frameTime = end - start;
+        frameNanos += frameTime;
+        frameTimes[(int) Math.min(frameTime / BUCKET_NANOS, BUCKETS - 1)]++;
+        emulationNanos += emulated - start;
+        renderNanos += end - emulated;
+        loops++;
+        if (presented)
+            presentedFrames++;
+        if (keyPressedAt != 0) {
+            long latency = end - keyPressedAt;
+            keyLatencyNanos += latency;
+            keyLatencies++;
+            maxKeyLatencyNanos = Math.max(maxKeyLatencyNanos, latency);
+            keyPressedAt = 0;
+        }
+        if (end - windowStart >= WINDOW_NANOS)
+            publish(end, dropped);
+    }
+
+    private void publish(long now, long dropped) {
+        double seconds = (now - windowStart) / 1e9;
+        totalInstructions += instructions;
+        totalFrames += frames;
+
+        instructionsPerSecond = Math.round(instructions / seconds);
+        framesPerSecond = Math.round(frames / seconds);
+        presentedFramesPerSecond = Math.round(presentedFrames / seconds);
+        droppedFrames = dropped;
+        publishedInstructions = totalInstructions;
+        publishedFrames = totalFrames;
+        averageFrameTime = loops == 0 ? 0 : frameNanos / 1e6 / loops;
+        p99FrameTime = percentile(0.99);
+        emulationPercent = emulationNanos / 1e7 / seconds;
+        renderPercent = renderNanos / 1e7 / seconds;
+        averageKeyLatency = keyLatencies == 0 ? 0 : keyLatencyNanos / 1e6 / keyLatencies;
+        maxKeyLatency = maxKeyLatencyNanos / 1e6;
+
+        windowStart = now;
+        instructions = frames = presentedFrames = loops = 0;
+        frameNanos = emulationNanos = renderNanos = 0;
+        keyLatencyNanos = keyLatencies = maxKeyLatencyNanos = 0;
+        Arrays.fill(frameTimes, 0);
+    }
+
+    /**
+     * @param fraction
+     * @return Upper edge of the bucket the fraction falls in, in milliseconds
+     */
+    private double percentile(double fraction) {
+        long wanted = (long) Math.ceil(loops * fraction);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += frameTimes[bucket];
+            if (seen >= wanted)
+                return (bucket + 1) * BUCKET_NANOS / 1e6;
+        }
+        return BUCKETS * BUCKET_NANOS / 1e6;
+    }
+
+    @Override
+    public long getInstructionsPerSecond() {
+        return instructionsPerSecond;
+    }
+
+    @Override
+    public long getFramesPerSecond() {
+        return framesPerSecond;
+    }
+
+    @Override
+    public long getPresentedFramesPerSecond() {
+        return presentedFramesPerSecond;
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    @Override
+    public long getTotalInstructions() {
+        return publishedInstructions;
+    }
+
+    @Override
+    public long getTotalFrames() {
+        return publishedFrames;
+    }
+
+    @Override
+    public double getAverageFrameTimeMillis() {
+        return averageFrameTime;
+    }
+
+    @Override
+    public double getP99FrameTimeMillis() {
+        return p99FrameTime;
+    }
+
+    @Override
+    public double getEmulationPercent() {
+        return emulationPercent;
+    }
+
+    @Override
+    public double getRenderPercent() {
+        return renderPercent;
+    }
+
+    @Override
+    public double getAverageKeyLatencyMillis() {
+        return averageKeyLatency;
+    }
+
+    @Override
+    public double getMaxKeyLatencyMillis() {
+        return maxKeyLatency;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ips=%d fps=%d presented=%d dropped=%d frame=%.2fms p99=%.2fms emulation=%.1f%% render=%.1f%%",
+                instructionsPerSecond, framesPerSecond, presentedFramesPerSecond, droppedFrames, averageFrameTime,
+                p99FrameTime, emulationPercent, renderPercent);
+    }
+}
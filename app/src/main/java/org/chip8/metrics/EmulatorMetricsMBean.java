@@ -0,0 +1,56 @@
+package org.chip8.metrics;
+
+/**
+ * What EmulatorMetrics shows over JMX. Rates, times and percentages cover
+ * the last full second, totals cover the whole run.
+ */
+public interface EmulatorMetricsMBean {
+
+    long getInstructionsPerSecond();
+
+    /**
+     * Emulated frames, 60 at normal speed, more in turbo
+     */
+    long getFramesPerSecond();
+
+    /**
+     * Frames with something new on screen, handed to the render thread
+     */
+    long getPresentedFramesPerSecond();
+
+    /**
+     * Frames given up on because the loop fell too far behind
+     */
+    long getDroppedFrames();
+
+    long getTotalInstructions();
+
+    long getTotalFrames();
+
+    /**
+     * Time from the start of a loop pass (emulating the frames that were due)
+     * to the end of handing the result to the render thread
+     */
+    double getAverageFrameTimeMillis();
+
+    double getP99FrameTimeMillis();
+
+    /**
+     * Share of wall time spent emulating
+     */
+    double getEmulationPercent();
+
+    /**
+     * Share of wall time the game loop spent handing frames to the render
+     * thread, drawing itself happens on that thread
+     */
+    double getRenderPercent();
+
+    /**
+     * Time from a key going down to the first frame that saw it being handed
+     * to the render thread, 0 if no key was pressed
+     */
+    double getAverageKeyLatencyMillis();
+
+    double getMaxKeyLatencyMillis();
+}
@@ -0,0 +1,78 @@
+package org.chip8.rom;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A rom file read into memory once. One Rom is shared by everything that
+ * needs the rom, loading it into a cpu copies the bytes without touching the
+ * disk again.
+ *
+ * The bytes are a snapshot, so the hash always matches them. A rom edited on
+ * disk is a new Rom, RomLibrary notices the new modification time and reads
+ * it again.
+ */
+public final class Rom {
+
+    private final String hash;
+    private final byte[] image;
+
+    private Rom(byte[] image) {
+        this.hash = hash(image);
+        this.image = image;
+    }
+
+    /**
+     * Read a rom file
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static Rom read(Path file) throws IOException {
+        return new Rom(Files.readAllBytes(file));
+    }
+
+    /**
+     * Hex SHA-256 of the rom bytes, what roms are keyed by everywhere
+     * 
+     * @param rom
+     * @return
+     */
+    public static String hash(byte[] rom) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            byte[] digest = sha.digest(rom);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Hex SHA-256 of the rom, see hash()
+     *
+     * @return
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    public int getSize() {
+        return image.length;
+    }
+
+    /**
+     * @return A copy of the rom
+     */
+    public byte[] toByteArray() {
+        return image.clone();
+    }
+}
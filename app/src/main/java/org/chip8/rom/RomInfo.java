@@ -0,0 +1,117 @@
+package org.chip8.rom;
+
+import java.nio.file.Path;
+
+import org.chip8.cpu.Platform;
+
+/**
+ * What the library knows about a rom file without reading it again
+ */
+public class RomInfo {
+
+    /**
+     * Quirk sensitive instructions a rom uses, interpreters disagree on what
+     * these do so they are the ones worth checking when a rom misbehaves
+     */
+    public static final int QUIRK_SHIFT = 1, QUIRK_LOAD_STORE = 2, QUIRK_JUMP_OFFSET = 4, QUIRK_VF_RESET = 8,
+            QUIRK_DRAW = 16;
+
+    private final Path path;
+    private final long size, modified;
+    private final String hash;
+    private final Platform platform;
+    private final int quirks;
+    /**
+     * Last instructions per frame it was played with, 0 if never played
+     */
+    private volatile int instructionsPerFrame;
+
+    RomInfo(Path path, long size, long modified, String hash, Platform platform, int quirks,
+            int instructionsPerFrame) {
+        this.path = path;
+        this.size = size;
+        this.modified = modified;
+        this.hash = hash;
+        this.platform = platform;
+        this.quirks = quirks;
+        this.instructionsPerFrame = instructionsPerFrame;
+    }
+
+    /**
+     * Find the quirk sensitive instructions in a rom, only words at even
+     * offsets are looked at
+     *
+     * @param rom
+     * @return QUIRK_ flags
+     */
+    static int detectQuirks(byte[] rom) {
+        int quirks = 0;
+        for (int index = 0; index + 1 < rom.length; index += 2) {
+            int opcode = (rom[index] & 0xFF) << 8 | (rom[index + 1] & 0xFF);
+            int n = opcode & 0xF;
+            int nn = opcode & 0xFF;
+            switch (opcode >> 12) {
+                case 0x8:
+                    if (n == 0x6 || n == 0xE)
+                        quirks |= QUIRK_SHIFT;
+                    else if (n >= 0x1 && n <= 0x3)
+                        quirks |= QUIRK_VF_RESET;
+                    break;
+                case 0xB:
+                    quirks |= QUIRK_JUMP_OFFSET;
+                    break;
+                case 0xD:
+                    quirks |= QUIRK_DRAW;
+                    break;
+                case 0xF:
+                    if (nn == 0x55 || nn == 0x65)
+                        quirks |= QUIRK_LOAD_STORE;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return quirks;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public String getName() {
+        return path.getFileName().toString();
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getModified() {
+        return modified;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public Platform getPlatform() {
+        return platform;
+    }
+
+    public int getQuirks() {
+        return quirks;
+    }
+
+    public int getInstructionsPerFrame() {
+        return instructionsPerFrame;
+    }
+
+    void setInstructionsPerFrame(int instructionsPerFrame) {
+        this.instructionsPerFrame = instructionsPerFrame;
+    }
+
+    @Override
+    public String toString() {
+        return getName() + (platform == Platform.CHIP8 ? "" : " (" + platform + ")");
+    }
+}
@@ -0,0 +1,253 @@
+package org.chip8.rom;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.chip8.cpu.Platform;
+
+/**
+ * Rom files indexed by the SHA-256 of their contents.
+ *
+ * Every rom is read from disk once (see Rom) and the bytes are shared by
+ * everyone who loads the same contents, whatever the file is called. What the library learned about each file (size, hash, platform,
+ * quirk sensitive instructions, the speed it was last played at) is kept in an
+ * index file, so scanning a directory again only reads files whose size or
+ * modification time changed.
+ *
+ * Index: "C8RL", version, entry count, then per entry path, size, modified,
+ * hash, platform, quirks, instructions per frame.
+ */
+public class RomLibrary {
+
+    private static final int MAGIC = 0x4338524C;
+    /**
+     * 2: the platform is guessed from reachable code only, version 1 entries
+     * are read again
+     */
+    private static final int VERSION = 2;
+    private static final String EXTENSION = ".ch8";
+
+    private final Path indexFile;
+    /**
+     * Keyed by absolute path
+     */
+    private final Map<Path, RomInfo> files = new HashMap<>();
+    /**
+     * Keyed by hash
+     */
+    private final Map<String, Rom> roms = new HashMap<>();
+    private boolean dirty = false;
+
+    /**
+     * @param indexFile Read if it exists, written by save()
+     */
+    public RomLibrary(Path indexFile) {
+        this.indexFile = indexFile;
+        if (Files.exists(indexFile)) {
+            try {
+                readIndex();
+            } catch (IOException e) {
+                // Only a cache, start over
+                System.out.println("Could not read " + indexFile + ", rescanning");
+                files.clear();
+            }
+        }
+    }
+
+    /**
+     * ~/.chip8/roms.index, saved when the JVM exits
+     *
+     * @return
+     */
+    public static RomLibrary defaultLibrary() {
+        RomLibrary library = new RomLibrary(Paths.get(System.getProperty("user.home"), ".chip8", "roms.index"));
+        Runtime.getRuntime().addShutdownHook(new Thread(library::save));
+        return library;
+    }
+
+    /**
+     * Every .ch8 file in a directory (not its subdirectories), by name
+     *
+     * @param directory
+     * @return
+     * @throws IOException If the directory can't be listed, files that can't be
+     *                     read are left out
+     */
+    public synchronized List<RomInfo> scan(Path directory) throws IOException {
+        List<RomInfo> found = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path file : entries) {
+                if (!file.getFileName().toString().toLowerCase().endsWith(EXTENSION) || !Files.isRegularFile(file))
+                    continue;
+                try {
+                    found.add(info(file));
+                } catch (IOException e) {
+                    System.out.println("Could not read " + file);
+                }
+            }
+        }
+        found.sort(Comparator.comparing(RomInfo::getName));
+        return found;
+    }
+
+    /**
+     * What the library knows about a file, read from disk only if it is new or
+     * changed since it was last looked at
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public synchronized RomInfo info(Path file) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        long size = Files.size(key);
+        long modified = Files.getLastModifiedTime(key).toMillis();
+        RomInfo info = files.get(key);
+        if (info != null && info.getSize() == size && info.getModified() == modified)
+            return info;
+
+        Rom rom = Rom.read(key);
+        roms.put(rom.getHash(), rom);
+        byte[] bytes = rom.toByteArray();
+        // Same contents under another name or before an edit, keep its settings
+        int instructionsPerFrame = getInstructionsPerFrame(rom.getHash());
+        info = new RomInfo(key, size, modified, rom.getHash(), Platform.detect(bytes), RomInfo.detectQuirks(bytes),
+                instructionsPerFrame);
+        files.put(key, info);
+        dirty = true;
+        return info;
+    }
+
+    /**
+     * Load a rom, reading it only if these contents were never loaded before
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public synchronized Rom load(Path file) throws IOException {
+        RomInfo info = info(file);
+        Rom rom = roms.get(info.getHash());
+        if (rom == null) {
+            rom = Rom.read(info.getPath());
+            if (!rom.getHash().equals(info.getHash())) {
+                // Changed without its size or time changing, believe the contents
+                files.remove(info.getPath());
+                return roms.get(info(file).getHash());
+            }
+            roms.put(rom.getHash(), rom);
+        }
+        return rom;
+    }
+
+    /**
+     * Instructions per frame a rom was last played at
+     *
+     * @param hash See Rom.getHash()
+     * @return 0 if it was never played
+     */
+    public synchronized int getInstructionsPerFrame(String hash) {
+        for (RomInfo info : files.values()) {
+            if (info.getHash().equals(hash) && info.getInstructionsPerFrame() != 0)
+                return info.getInstructionsPerFrame();
+        }
+        return 0;
+    }
+
+    /**
+     * Remember the instructions per frame a rom is being played at, for every
+     * file with the same contents
+     *
+     * @param hash                 See Rom.getHash()
+     * @param instructionsPerFrame
+     */
+    public synchronized void setInstructionsPerFrame(String hash, int instructionsPerFrame) {
+        for (RomInfo info : files.values()) {
+            if (info.getHash().equals(hash) && info.getInstructionsPerFrame() != instructionsPerFrame) {
+                info.setInstructionsPerFrame(instructionsPerFrame);
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Write the index if anything changed. Files that are gone are left out.
+     */
+    public synchronized void save() {
+        if (!dirty)
+            return;
+        try {
+            if (indexFile.getParent() != null)
+                Files.createDirectories(indexFile.getParent());
+            // Write next to it and swap, so a crash never leaves half an index
+            Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                List<RomInfo> present = new ArrayList<>();
+                for (RomInfo info : files.values()) {
+                    if (Files.exists(info.getPath()))
+                        present.add(info);
+                }
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(present.size());
+                for (RomInfo info : present) {
+                    out.writeUTF(info.getPath().toString());
+                    out.writeLong(info.getSize());
+                    out.writeLong(info.getModified());
+                    out.writeUTF(info.getHash());
+                    out.writeUTF(info.getPlatform().name());
+                    out.writeInt(info.getQuirks());
+                    out.writeInt(info.getInstructionsPerFrame());
+                }
+            }
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException e) {
+            System.out.println("Could not write " + indexFile);
+            e.printStackTrace();
+        }
+    }
+
+    private void readIndex() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException(indexFile + " is not a rom index");
+            int version = in.readInt();
+            if (version != VERSION && version != 1)
+                throw new IOException(indexFile + " is not a rom index");
+            int count = in.readInt();
+            for (int index = 0; index < count; index++) {
+                Path path = Paths.get(in.readUTF());
+                long size = in.readLong();
+                long modified = in.readLong();
+                // Never matches the file, so info() reads it again and keeps its speed
+                if (version == 1)
+                    modified = -1;
+                String hash = in.readUTF();
+                Platform platform;
+                try {
+                    platform = Platform.valueOf(in.readUTF());
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(indexFile + " has an unknown platform");
+                }
+                int quirks = in.readInt();
+                int instructionsPerFrame = in.readInt();
+                files.put(path, new RomInfo(path, size, modified, hash, platform, quirks, instructionsPerFrame));
+            }
+        }
+    }
+}
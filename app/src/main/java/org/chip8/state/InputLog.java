@@ -0,0 +1,228 @@
+package org.chip8.state;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.chip8.cpu.Platform;
+
+/**
+ * Everything needed to play a run again bit for bit: the rng seed, the
+ * instructions per frame, and the keys held during each frame. Keys are kept
+ * as (first frame, key mask) entries, a new one only when the keys change.
+ * The hash of the cpu after every frame (Cpu.stateHash()) is kept too, so a
+ * replay can tell exactly which frame it went off at. A run that did not
+ * start at power on keeps the save state it started from.
+ *
+ * File: "C8IN", version, seed, instructions per frame, rom hash, platform,
+ * start state length and bytes (0 for power on), frame count, entry count,
+ * entries, one hash per frame.
+ */
+public class InputLog {
+
+    private static final int MAGIC = 0x4338494E;
+    /**
+     * 2: the cpu sees every key held, not just the lowest one
+     * 3: the platform the rom ran as, version 2 logs are all Chip8
+     * 4: the state the run started from
+     */
+    private static final int VERSION = 4;
+
+    private final long seed;
+    private final int instructionsPerFrame;
+    private final String romHash;
+    private final Platform platform;
+    /**
+     * Cpu.saveState() the first frame started from, null for power on
+     */
+    private byte[] startState;
+
+    private int[] entryFrames = new int[64];
+    private int[] entryKeys = new int[64];
+    private int entries;
+    private int[] hashes = new int[1024];
+    private int frames;
+
+    /**
+     * An empty log to record into
+     *
+     * @param seed                 Seed the cpu was given
+     * @param instructionsPerFrame
+     * @param romHash              See Rom.hash()
+     */
+    public InputLog(long seed, int instructionsPerFrame, String romHash) {
+        this(seed, instructionsPerFrame, romHash, Platform.CHIP8);
+    }
+
+    /**
+     * An empty log to record into
+     *
+     * @param seed                 Seed the cpu was given
+     * @param instructionsPerFrame
+     * @param romHash              See Rom.hash()
+     * @param platform
+     */
+    public InputLog(long seed, int instructionsPerFrame, String romHash, Platform platform) {
+        this.seed = seed;
+        this.instructionsPerFrame = instructionsPerFrame;
+        this.romHash = romHash;
+        this.platform = platform;
+    }
+
+    /**
+     * Add a frame that just ran
+     *
+     * @param keys Key mask the frame ran with, bit n for key n
+     * @param hash Cpu.stateHash() after the frame
+     */
+    public synchronized void recordFrame(int keys, int hash) {
+        if (entries == 0 || entryKeys[entries - 1] != keys) {
+            if (entries == entryFrames.length) {
+                entryFrames = Arrays.copyOf(entryFrames, entries * 2);
+                entryKeys = Arrays.copyOf(entryKeys, entries * 2);
+            }
+            entryFrames[entries] = frames;
+            entryKeys[entries] = keys;
+            entries++;
+        }
+        if (frames == hashes.length)
+            hashes = Arrays.copyOf(hashes, frames * 2);
+        hashes[frames++] = hash;
+    }
+
+    /**
+     * Keys held during a frame
+     *
+     * @param frame
+     * @return Key mask
+     */
+    public int getKeys(int frame) {
+        // Last entry starting at or before frame
+        int index = Arrays.binarySearch(entryFrames, 0, entries, frame);
+        if (index < 0)
+            index = -index - 2;
+        return index < 0 ? 0 : entryKeys[index];
+    }
+
+    /**
+     * Cpu.stateHash() after a frame
+     *
+     * @param frame
+     * @return
+     */
+    public int getHash(int frame) {
+        return hashes[frame];
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getInstructionsPerFrame() {
+        return instructionsPerFrame;
+    }
+
+    public String getRomHash() {
+        return romHash;
+    }
+
+    public Platform getPlatform() {
+        return platform;
+    }
+
+    /**
+     * @return The save state the run started from, null if it started at
+     *         power on with the seed
+     */
+    public byte[] getStartState() {
+        return startState;
+    }
+
+    /**
+     * Note that the run starts from a save state instead of power on
+     *
+     * @param startState See Cpu.saveState()
+     */
+    public void setStartState(byte[] startState) {
+        this.startState = startState;
+    }
+
+    public synchronized void write(Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(seed);
+            out.writeInt(instructionsPerFrame);
+            out.writeUTF(romHash);
+            out.writeUTF(platform.name());
+            out.writeInt(startState == null ? 0 : startState.length);
+            if (startState != null)
+                out.write(startState);
+            out.writeInt(frames);
+            out.writeInt(entries);
+            for (int index = 0; index < entries; index++) {
+                out.writeInt(entryFrames[index]);
+                out.writeShort(entryKeys[index]);
+            }
+            for (int frame = 0; frame < frames; frame++) {
+                out.writeInt(hashes[frame]);
+            }
+        }
+    }
+
+    /**
+     * @param file
+     * @return
+     * @throws IOException If it is not an input log
+     */
+    public static InputLog read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not an input log");
+            int version = in.readInt();
+            if (version < 2 || version > VERSION)
+                throw new IOException(file + " is not an input log");
+            long seed = in.readLong();
+            int instructionsPerFrame = in.readInt();
+            String romHash = in.readUTF();
+            Platform platform = Platform.CHIP8;
+            if (version >= 3) {
+                try {
+                    platform = Platform.valueOf(in.readUTF());
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(file + " is for an unknown platform");
+                }
+            }
+            InputLog log = new InputLog(seed, instructionsPerFrame, romHash, platform);
+            int startStateLength = version >= 4 ? in.readInt() : 0;
+            if (startStateLength > 0) {
+                log.startState = new byte[startStateLength];
+                in.readFully(log.startState);
+            }
+            int frames = in.readInt();
+            int entries = in.readInt();
+            log.entryFrames = new int[Math.max(1, entries)];
+            log.entryKeys = new int[Math.max(1, entries)];
+            for (int index = 0; index < entries; index++) {
+                log.entryFrames[index] = in.readInt();
+                log.entryKeys[index] = in.readUnsignedShort();
+            }
+            log.entries = entries;
+            log.hashes = new int[Math.max(1, frames)];
+            for (int frame = 0; frame < frames; frame++) {
+                log.hashes[frame] = in.readInt();
+            }
+            log.frames = frames;
+            return log;
+        }
+    }
+}
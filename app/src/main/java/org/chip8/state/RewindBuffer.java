@@ -0,0 +1,287 @@
+package org.chip8.state;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.chip8.cpu.Cpu;
+
+/**
+ * The last few seconds of machine history, one entry per frame, so the game
+ * can be stepped back frame by frame.
+ *
+ * Every frame the cpu is saved (see Cpu.saveState()) and XORed with the
+ * frame before. Very little changes in a frame, so the XOR is mostly zeroes
+ * and run length encoding squeezes it down to a few dozen bytes. Every
+ * keyInterval frames a key frame (the whole state, run length encoded too) is
+ * stored instead, so old history can be thrown away a key frame at a time.
+ *
+ * Entries go into one byte ring of budget bytes; when it is full, or more
+ * than seconds worth of frames are held, the oldest key frame and its deltas
+ * are dropped.
+ *
+ * Encoding: repeated (zero count, literal count, literal bytes), counts as
+ * varints, until the whole state is covered.
+ */
+public class RewindBuffer {
+
+    public static final int DEFAULT_KEY_INTERVAL = 60;
+
+    private final int keyInterval;
+    private final int maxFrames;
+
+    /**
+     * Encoded entries, byte p of the stream lives at data[p % data.length]
+     */
+    private final byte[] data;
+    private long head, tail;
+
+    /**
+     * Entry index, a ring of maxFrames. Entry n is at (first + n) % maxFrames.
+     */
+    private final long[] starts;
+    private final int[] lengths;
+    private final boolean[] keys;
+    private int first, count;
+    private int sinceKey;
+
+    /**
+     * The state of the newest entry, as big as the platform's states
+     */
+    private byte[] current = new byte[0];
+    private ByteBuffer currentBuffer = ByteBuffer.wrap(current);
+    private byte[] next = new byte[0];
+    private ByteBuffer nextBuffer = ByteBuffer.wrap(next);
+    private final byte[] encoded = new byte[Cpu.MAX_STATE_SIZE * 2 + 16];
+
+    /**
+     * @param seconds Most history to keep, at 60 frames a second
+     * @param budget  Most bytes to keep it in
+     */
+    public RewindBuffer(int seconds, int budget) {
+        this(seconds, budget, DEFAULT_KEY_INTERVAL);
+    }
+
+    /**
+     * @param seconds     Most history to keep, at 60 frames a second
+     * @param budget      Most bytes to keep it in, at least two key frames
+     * @param keyInterval Frames between key frames
+     */
+    public RewindBuffer(int seconds, int budget, int keyInterval) {
+        if (budget < encoded.length * 2)
+            throw new IllegalArgumentException("Rewind budget too small, need " + encoded.length * 2 + " bytes");
+        this.keyInterval = keyInterval;
+        maxFrames = Math.max(2, seconds * 60);
+        data = new byte[budget];
+        starts = new long[maxFrames];
+        lengths = new int[maxFrames];
+        keys = new boolean[maxFrames];
+    }
+
+    /**
+     * Remember the state at the end of a frame
+     *
+     * @param cpu
+     */
+    public void record(Cpu cpu) {
+        if (cpu.getStateSize() != next.length) {
+            // Another platform, none of the history fits any more
+            current = new byte[cpu.getStateSize()];
+            currentBuffer = ByteBuffer.wrap(current);
+            next = new byte[cpu.getStateSize()];
+            nextBuffer = ByteBuffer.wrap(next);
+            clear();
+        }
+        nextBuffer.clear();
+        cpu.saveState(nextBuffer);
+
+        boolean key = count == 0 || sinceKey >= keyInterval - 1;
+        int length = key ? encode(next, null) : encode(next, current);
+        while (count > 0 && (head - tail + length > data.length || count == maxFrames)) {
+            dropOldest();
+        }
+        if (!key && count == 0) {
+            // Everything it was a delta against is gone
+            key = true;
+            length = encode(next, null);
+        }
+
+        int entry = (first + count) % maxFrames;
+        starts[entry] = head;
+        lengths[entry] = length;
+        keys[entry] = key;
+        write(encoded, length);
+        count++;
+        sinceKey = key ? 0 : sinceKey + 1;
+
+        byte[] swap = current;
+        current = next;
+        next = swap;
+        ByteBuffer swapBuffer = currentBuffer;
+        currentBuffer = nextBuffer;
+        nextBuffer = swapBuffer;
+    }
+
+    /**
+     * Go back one frame and load it into the cpu
+     *
+     * @param cpu
+     * @return false if there is no older frame left
+     */
+    public boolean rewind(Cpu cpu) {
+        if (count < 2)
+            return false;
+        int newest = (first + count - 1) % maxFrames;
+        if (keys[newest]) {
+            count--;
+            rebuild();
+        } else {
+            // current ^ (current ^ previous) = previous
+            read(newest);
+            apply(current);
+            count--;
+        }
+        head = starts[newest];
+        sinceKey = 0;
+        for (int n = count - 1; !keys[(first + n) % maxFrames]; n--) {
+            sinceKey++;
+        }
+        currentBuffer.clear();
+        cpu.loadState(currentBuffer);
+        return true;
+    }
+
+    /**
+     * Rebuild current from the newest key frame and the deltas after it
+     */
+    private void rebuild() {
+        int n = count - 1;
+        while (!keys[(first + n) % maxFrames]) {
+            n--;
+        }
+        Arrays.fill(current, (byte) 0);
+        for (; n < count; n++) {
+            read((first + n) % maxFrames);
+            apply(current);
+        }
+    }
+
+    /**
+     * Forget everything, e.g. after loading a rom or a save state
+     */
+    public void clear() {
+        head = tail = 0;
+        first = count = sinceKey = 0;
+    }
+
+    /**
+     * Frames that can be stepped back
+     *
+     * @return
+     */
+    public int getFrames() {
+        return Math.max(0, count - 1);
+    }
+
+    public long getBytesUsed() {
+        return head - tail;
+    }
+
+    private void dropOldest() {
+        do {
+            first = (first + 1) % maxFrames;
+            count--;
+        } while (count > 0 && !keys[first]);
+        tail = count > 0 ? starts[first] : head;
+    }
+
+    /**
+     * Run length encode state XOR base into encoded
+     *
+     * @param state
+     * @param base  null for a key frame
+     * @return Encoded length
+     */
+    private int encode(byte[] state, byte[] base) {
+        int length = 0;
+        int position = 0;
+        while (position < state.length) {
+            int zeros = position;
+            while (position < state.length && xor(state, base, position) == 0) {
+                position++;
+            }
+            zeros = position - zeros;
+            // A literal runs until two zeroes in a row, a single zero is cheaper inline
+            int literal = position;
+            while (position < state.length && (xor(state, base, position) != 0
+                    || (position + 1 < state.length && xor(state, base, position + 1) != 0))) {
+                position++;
+            }
+            length = putVarint(length, zeros);
+            length = putVarint(length, position - literal);
+            for (int index = literal; index < position; index++) {
+                encoded[length++] = xor(state, base, index);
+            }
+        }
+        return length;
+    }
+
+    private static byte xor(byte[] state, byte[] base, int index) {
+        return base == null ? state[index] : (byte) (state[index] ^ base[index]);
+    }
+
+    private int putVarint(int at, int value) {
+        while (value >= 0x80) {
+            encoded[at++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        encoded[at++] = (byte) value;
+        return at;
+    }
+
+    /**
+     * XOR the entry sitting in encoded into target
+     */
+    private void apply(byte[] target) {
+        int at = 0;
+        int position = 0;
+        while (position < target.length) {
+            int zeros = 0;
+            for (int shift = 0;; shift += 7) {
+                byte b = encoded[at++];
+                zeros |= (b & 0x7F) << shift;
+                if (b >= 0)
+                    break;
+            }
+            int literal = 0;
+            for (int shift = 0;; shift += 7) {
+                byte b = encoded[at++];
+                literal |= (b & 0x7F) << shift;
+                if (b >= 0)
+                    break;
+            }
+            position += zeros;
+            for (int index = 0; index < literal; index++) {
+                target[position++] ^= encoded[at++];
+            }
+        }
+    }
+
+    private void write(byte[] bytes, int length) {
+        int offset = (int) (head % data.length);
+        int firstPart = Math.min(length, data.length - offset);
+        System.arraycopy(bytes, 0, data, offset, firstPart);
+        System.arraycopy(bytes, firstPart, data, 0, length - firstPart);
+        head += length;
+    }
+
+    /**
+     * Copy an entry out of the ring into encoded
+     */
+    private void read(int entry) {
+        int offset = (int) (starts[entry] % data.length);
+        int length = lengths[entry];
+        int firstPart = Math.min(length, data.length - offset);
+        System.arraycopy(data, offset, encoded, 0, firstPart);
+        System.arraycopy(data, 0, encoded, firstPart, length - firstPart);
+    }
+}
@@ -0,0 +1,100 @@
+package org.chip8.state;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import org.chip8.cpu.Cpu;
+import org.chip8.cpu.Platform;
+import org.chip8.rom.Rom;
+
+/**
+ * Numbered save states in one memory mapped file.
+ *
+ * Slot n lives at n * slotSize, saving is a copy into mapped memory
+ * and the OS writes it out whenever it likes, so it never holds up a frame.
+ * A slot that was never written is all zeroes and reads as empty.
+ */
+public class SaveSlots implements AutoCloseable {
+
+    public static final int SLOTS = 8;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer slots;
+    private final int slotSize;
+
+    /**
+     * @param file     Created if it does not exist
+     * @param slotSize Bytes per state, see Cpu.stateSize()
+     * @throws IOException
+     */
+    public SaveSlots(Path file, int slotSize) throws IOException {
+        this.slotSize = slotSize;
+        if (file.getParent() != null)
+            Files.createDirectories(file.getParent());
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        slots = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) SLOTS * slotSize);
+    }
+
+    /**
+     * ~/.chip8/states/(rom hash)-(platform).slots, so every rom has its own
+     * slots, and states of different sizes never share a file
+     * 
+     * @param rom
+     * @param platform
+     * @return
+     * @throws IOException
+     */
+    public static SaveSlots forRom(byte[] rom, Platform platform) throws IOException {
+        return new SaveSlots(Paths.get(System.getProperty("user.home"), ".chip8", "states",
+                Rom.hash(rom) + "-" + platform.name().toLowerCase() + ".slots"), Cpu.stateSize(platform));
+    }
+
+    private ByteBuffer slot(int slot) {
+        if (slot < 0 || slot >= SLOTS)
+            throw new IllegalArgumentException("No save slot " + slot);
+        return slots.slice(slot * slotSize, slotSize);
+    }
+
+    /**
+     * Save the cpu to a slot, call it between frames
+     * 
+     * @param slot 0 to SLOTS - 1
+     * @param cpu
+     */
+    public void save(int slot, Cpu cpu) {
+        cpu.saveState(slot(slot));
+    }
+
+    /**
+     * Load a slot into the cpu, call it between frames
+     * 
+     * @param slot 0 to SLOTS - 1
+     * @param cpu
+     * @return false if the slot is empty or holds a state from another version
+     */
+    public boolean load(int slot, Cpu cpu) {
+        ByteBuffer state = slot(slot);
+        try {
+            cpu.loadState(state);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Make sure everything saved is on disk and let the file go
+     */
+    @Override
+    public void close() throws IOException {
+        slots.force();
+        channel.close();
+    }
+}
@@ -0,0 +1,287 @@
+package org.chip8.trace;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes trace records to a text file on a background thread.
+ *
+ * The emulator hands records over through a bounded single producer, single
+ * consumer queue of plain int arrays, which costs a few stores. The writer
+ * thread formats them into a reusable direct buffer and writes the buffer
+ * through a FileChannel whenever it fills up or the queue runs dry, so the
+ * file sees large writes instead of one per line.
+ *
+ * When the file grows past maxFileSize it is rotated: file becomes file.1,
+ * file.1 becomes file.2 and so on, keeping the last keepFiles of them.
+ * close() (also run on JVM shutdown) writes out everything queued first.
+ *
+ * Lines look like the other traces, see TraceBuffer.format().
+ */
+public class DebugLog implements AutoCloseable {
+
+    /**
+     * What record() does when the queue is full
+     */
+    public enum Overflow {
+        /**
+         * Throw the record away and count it, the emulator never waits
+         */
+        DROP,
+        /**
+         * Wait for the writer, nothing is lost but the emulator may stall
+         */
+        BLOCK
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Longest line format() can produce
+     */
+    private static final int MAX_LINE = 128;
+    /**
+     * How long the writer sleeps when there is nothing to write
+     */
+    private static final long IDLE_NANOS = 10_000_000;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final Path file;
+    private final long maxFileSize;
+    private final int keepFiles;
+    private final Overflow overflow;
+
+    private final int[] pcs, opcodes, is, registers;
+    private final int mask;
+    /**
+     * Written by the producer only, read by the writer
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * Written by the writer only, read by the producer
+     */
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong missed = new AtomicLong(), dropped = new AtomicLong();
+    private volatile boolean closed = false;
+
+    // Writer thread only
+    private final Thread writer;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final byte[][] disassembly = new byte[0x10000][];
+    private FileChannel channel;
+    private long fileSize;
+    private long droppedReported;
+
+    /**
+     * @param file        Log file, replaced if it exists
+     * @param capacity    Records the queue holds, rounded up to a power of two
+     * @param overflow    What to do when the queue is full
+     * @param maxFileSize Rotate once the file is this big
+     * @param keepFiles   Rotated files to keep
+     * @throws IOException
+     */
+    public DebugLog(Path file, int capacity, Overflow overflow, long maxFileSize, int keepFiles)
+            throws IOException {
+        this.file = file;
+        this.overflow = overflow;
+        this.maxFileSize = maxFileSize;
+        this.keepFiles = keepFiles;
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        pcs = new int[size];
+        opcodes = new int[size];
+        is = new int[size];
+        registers = new int[size];
+        mask = size - 1;
+        channel = open();
+
+        writer = new Thread(this::writeLoop, "chip8-debug-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    private FileChannel open() throws IOException {
+        fileSize = 0;
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Queue a record, from one thread only
+     *
+     * @param pc
+     * @param opcode
+     * @param i
+     * @param registers V[x] << 16 | V[y] << 8 | VF
+     * @return false if it was dropped
+     */
+    public boolean record(int pc, int opcode, int i, int registers) {
+        long position = head.get();
+        while (position - tail.get() > mask) {
+            if (overflow == Overflow.DROP || closed) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100_000);
+        }
+        int slot = (int) position & mask;
+        pcs[slot] = pc;
+        opcodes[slot] = opcode;
+        is[slot] = i;
+        this.registers[slot] = registers;
+        head.lazySet(position + 1);
+        // Wake the writer early rather than let the queue fill up
+        if (position - tail.get() == mask / 2)
+            LockSupport.unpark(writer);
+        return true;
+    }
+
+    /**
+     * Note that some instructions never made it here, e.g. they were
+     * overwritten in a TraceBuffer before anyone read them
+     *
+     * @param count
+     */
+    public void missed(long count) {
+        missed.addAndGet(count);
+    }
+
+    /**
+     * @return Records thrown away because the queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                // Read before draining, so nothing queued before close() is left behind
+                boolean last = closed;
+                if (drain() == 0) {
+                    if (last)
+                        break;
+                    LockSupport.parkNanos(IDLE_NANOS);
+                }
+            }
+            flush();
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            // Nobody is left to empty the queue, don't let record() wait for it
+            closed = true;
+        }
+    }
+
+    /**
+     * Write out everything queued
+     *
+     * @return Records written
+     */
+    private int drain() throws IOException {
+        writeGap("missed", missed.getAndSet(0));
+        long droppedNow = dropped.get();
+        writeGap("dropped", droppedNow - droppedReported);
+        droppedReported = droppedNow;
+        long position = tail.get();
+        long end = head.get();
+        int written = (int) (end - position);
+        for (; position < end; position++) {
+            if (buffer.remaining() < MAX_LINE)
+                flush();
+            int slot = (int) position & mask;
+            encode(pcs[slot], opcodes[slot], is[slot], registers[slot]);
+            // Free the slot as soon as it is copied
+            tail.lazySet(position + 1);
+        }
+        flush();
+        return written;
+    }
+
+    private void writeGap(String what, long count) throws IOException {
+        if (count == 0)
+            return;
+        if (buffer.remaining() < MAX_LINE)
+            flush();
+        buffer.put(("... " + count + " instructions " + what + "\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Same as TraceBuffer.format(), without making a String
+     */
+    private void encode(int pc, int opcode, int i, int registers) {
+        hex(pc, 4).put((byte) ' ');
+        hex(opcode, 4).put((byte) ' ');
+        byte[] instruction = disassembly[opcode & 0xFFFF];
+        if (instruction == null) {
+            instruction = String.format("%-16s", Disassembler.disassemble(opcode & 0xFFFF))
+                    .getBytes(StandardCharsets.US_ASCII);
+            disassembly[opcode & 0xFFFF] = instruction;
+        }
+        buffer.put(instruction);
+        buffer.put((byte) ' ').put((byte) 'I').put((byte) '=');
+        hex(i, 3);
+        buffer.put((byte) ' ').put((byte) 'V').put((byte) 'x').put((byte) '=');
+        hex(registers >> 16, 2);
+        buffer.put((byte) ' ').put((byte) 'V').put((byte) 'y').put((byte) '=');
+        hex(registers >> 8, 2);
+        buffer.put((byte) ' ').put((byte) 'V').put((byte) 'F').put((byte) '=');
+        hex(registers, 2);
+        buffer.put((byte) '\n');
+    }
+
+    private ByteBuffer hex(int value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            buffer.put(HEX[(value >> shift) & 0xF]);
+        }
+        return buffer;
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            fileSize += channel.write(buffer);
+        }
+        buffer.clear();
+        if (fileSize >= maxFileSize)
+            rotate();
+    }
+
+    private void rotate() throws IOException {
+        channel.close();
+        for (int index = keepFiles; index > 0; index--) {
+            Path from = index == 1 ? file : rotated(index - 1);
+            if (Files.exists(from))
+                Files.move(from, rotated(index), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (keepFiles == 0)
+            Files.deleteIfExists(file);
+        channel = open();
+    }
+
+    private Path rotated(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    /**
+     * Write out everything queued and close the file. Waits for the writer.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
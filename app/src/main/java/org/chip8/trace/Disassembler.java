@@ -0,0 +1,160 @@
+package org.chip8.trace;
+
+/**
+ * Turns opcodes into readable instructions, only ever used when someone
+ * actually looks at a trace. Super-Chip and XO-Chip opcodes are shown too,
+ * none of them mean anything else on a plain Chip8.
+ */
+public final class Disassembler {
+
+    private Disassembler() {
+    }
+
+    /**
+     * @param opcode
+     * @return e.g. "LD V1, $0A"
+     */
+    public static String disassemble(int opcode) {
+        int x = (opcode >> 8) & 0xF;
+        int y = (opcode >> 4) & 0xF;
+        int n = opcode & 0xF;
+        int nn = opcode & 0xFF;
+        int nnn = opcode & 0xFFF;
+
+        switch (opcode >> 12) {
+            case 0x0:
+                if (opcode == 0x00E0)
+                    return "CLS";
+                if (opcode == 0x00EE)
+                    return "RET";
+                return disassembleSuperChip0x0(opcode, n);
+            case 0x1:
+                return String.format("JP $%03X", nnn);
+            case 0x2:
+                return String.format("CALL $%03X", nnn);
+            case 0x3:
+                return String.format("SE V%X, $%02X", x, nn);
+            case 0x4:
+                return String.format("SNE V%X, $%02X", x, nn);
+            case 0x5:
+                if (n == 0x2)
+                    return String.format("SAVE V%X-V%X", x, y);
+                if (n == 0x3)
+                    return String.format("LOAD V%X-V%X", x, y);
+                return String.format("SE V%X, V%X", x, y);
+            case 0x6:
+                return String.format("LD V%X, $%02X", x, nn);
+            case 0x7:
+                return String.format("ADD V%X, $%02X", x, nn);
+            case 0x8:
+                return disassemble0x8(x, y, n);
+            case 0x9:
+                return String.format("SNE V%X, V%X", x, y);
+            case 0xA:
+                return String.format("LD I, $%03X", nnn);
+            case 0xB:
+                return String.format("JP V0, $%03X", nnn);
+            case 0xC:
+                return String.format("RND V%X, $%02X", x, nn);
+            case 0xD:
+                return String.format("DRW V%X, V%X, %d", x, y, n);
+            case 0xE:
+                if (nn == 0x9E)
+                    return String.format("SKP V%X", x);
+                if (nn == 0xA1)
+                    return String.format("SKNP V%X", x);
+                return unknown(opcode);
+            default:
+                return disassemble0xF(opcode, x, nn);
+        }
+    }
+
+    private static String disassemble0x8(int x, int y, int n) {
+        switch (n) {
+            case 0x0:
+                return String.format("LD V%X, V%X", x, y);
+            case 0x1:
+                return String.format("OR V%X, V%X", x, y);
+            case 0x2:
+                return String.format("AND V%X, V%X", x, y);
+            case 0x3:
+                return String.format("XOR V%X, V%X", x, y);
+            case 0x4:
+                return String.format("ADD V%X, V%X", x, y);
+            case 0x5:
+                return String.format("SUB V%X, V%X", x, y);
+            case 0x6:
+                return String.format("SHR V%X", x);
+            case 0x7:
+                return String.format("SUBN V%X, V%X", x, y);
+            case 0xE:
+                return String.format("SHL V%X", x);
+            default:
+                return unknown(0x8000 | x << 8 | y << 4 | n);
+        }
+    }
+
+    private static String disassembleSuperChip0x0(int opcode, int n) {
+        if ((opcode & 0xFFF0) == 0x00C0)
+            return String.format("SCD %d", n);
+        if ((opcode & 0xFFF0) == 0x00D0)
+            return String.format("SCU %d", n);
+        switch (opcode) {
+            case 0x00FB:
+                return "SCR";
+            case 0x00FC:
+                return "SCL";
+            case 0x00FD:
+                return "EXIT";
+            case 0x00FE:
+                return "LOW";
+            case 0x00FF:
+                return "HIGH";
+            default:
+                return String.format("SYS $%03X", opcode & 0xFFF);
+        }
+    }
+
+    private static String disassemble0xF(int opcode, int x, int nn) {
+        if (opcode == 0xF000)
+            return "LD I, long";
+        if (opcode == 0xF002)
+            return "AUDIO";
+        switch (nn) {
+            case 0x01:
+                return String.format("PLANE %d", x);
+            case 0x07:
+                return String.format("LD V%X, DT", x);
+            case 0x0A:
+                return String.format("LD V%X, K", x);
+            case 0x15:
+                return String.format("LD DT, V%X", x);
+            case 0x18:
+                return String.format("LD ST, V%X", x);
+            case 0x1E:
+                return String.format("ADD I, V%X", x);
+            case 0x29:
+                return String.format("LD F, V%X", x);
+            case 0x30:
+                return String.format("LD HF, V%X", x);
+            case 0x3A:
+                return String.format("PITCH V%X", x);
+            case 0x33:
+                return String.format("LD B, V%X", x);
+            case 0x55:
+                return String.format("LD [I], V%X", x);
+            case 0x65:
+                return String.format("LD V%X, [I]", x);
+            case 0x75:
+                return String.format("LD R, V%X", x);
+            case 0x85:
+                return String.format("LD V%X, R", x);
+            default:
+                return unknown(opcode);
+        }
+    }
+
+    private static String unknown(int opcode) {
+        return String.format("DW $%04X", opcode);
+    }
+}
@@ -0,0 +1,165 @@
+package org.chip8.trace;
+
+import java.util.Arrays;
+
+/**
+ * Counts how often every address runs, which opcode classes (the first hex
+ * digit) run most, and which addresses ever ran at all.
+ *
+ * Nothing is sampled, every instruction is counted. The cpu only calls
+ * record() from its profiled run loop (see Cpu.setProfiler()), so with no
+ * profiler attached the normal loops carry no counting code at all.
+ * Not thread safe, read it from the thread that runs the Cpu.
+ */
+public class Profiler {
+
+    /**
+     * Big enough for XO-Chip's 64K
+     */
+    public static final int MEMORY_SIZE = 0x10000;
+
+    private final long[] counts = new long[MEMORY_SIZE];
+    private final long[] classCounts = new long[16];
+    /**
+     * Last opcode seen at each address, roms can rewrite themselves
+     */
+    private final int[] opcodes = new int[MEMORY_SIZE];
+    /**
+     * One bit per address that ever ran
+     */
+    private final long[] covered = new long[MEMORY_SIZE / 64];
+    private long total;
+
+    /**
+     * Count one instruction, just before it runs
+     *
+     * @param pc
+     * @param opcode
+     */
+    public void record(int pc, int opcode) {
+        counts[pc]++;
+        classCounts[opcode >>> 12]++;
+        opcodes[pc] = opcode;
+        covered[pc >>> 6] |= 1L << pc;
+        total++;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @param pc
+     * @return Times the instruction at pc ran
+     */
+    public long getCount(int pc) {
+        return counts[pc];
+    }
+
+    /**
+     * @param opcodeClass First hex digit of the opcode
+     * @return Instructions of that class that ran
+     */
+    public long getClassCount(int opcodeClass) {
+        return classCounts[opcodeClass];
+    }
+
+    public boolean isCovered(int pc) {
+        return (covered[pc >>> 6] & (1L << pc)) != 0;
+    }
+
+    /**
+     * @return Number of addresses that ever ran
+     */
+    public int getCoveredCount() {
+        int count = 0;
+        for (long word : covered) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    public void clear() {
+        Arrays.fill(counts, 0);
+        Arrays.fill(classCounts, 0);
+        Arrays.fill(opcodes, 0);
+        Arrays.fill(covered, 0);
+        total = 0;
+    }
+
+    /**
+     * The hottest addresses, most executed first
+     *
+     * @param limit Most lines to show
+     * @return One line per address: address, count, share of all instructions,
+     *         opcode and disassembly
+     */
+    public String hotSpots(int limit) {
+        // Sort count and address together, count in the high bits
+        int used = 0;
+        long[] sorted = new long[MEMORY_SIZE];
+        for (int pc = 0; pc < MEMORY_SIZE; pc++) {
+            if (counts[pc] > 0)
+                sorted[used++] = Math.min(counts[pc], Long.MAX_VALUE >>> 16) << 16 | pc;
+        }
+        Arrays.sort(sorted, 0, used);
+
+        StringBuilder report = new StringBuilder();
+        for (int index = used - 1; index >= Math.max(0, used - limit); index--) {
+            int pc = (int) (sorted[index] & 0xFFFF);
+            report.append(String.format("%03x %12d %6.2f%%  %04x  %s%n", pc, counts[pc],
+                    100.0 * counts[pc] / total, opcodes[pc], Disassembler.disassemble(opcodes[pc])));
+        }
+        return report.toString();
+    }
+
+    /**
+     * How many instructions of each opcode class ran, most executed first
+     *
+     * @return
+     */
+    public String instructionMix() {
+        Integer[] classes = new Integer[16];
+        for (int index = 0; index < classes.length; index++) {
+            classes[index] = index;
+        }
+        Arrays.sort(classes, (a, b) -> Long.compare(classCounts[b], classCounts[a]));
+
+        StringBuilder report = new StringBuilder();
+        for (int opcodeClass : classes) {
+            if (classCounts[opcodeClass] == 0)
+                break;
+            report.append(String.format("%Xxxx %12d %6.2f%%%n", opcodeClass, classCounts[opcodeClass],
+                    100.0 * classCounts[opcodeClass] / total));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Every instruction of a rom with whether it ran, how often, and its
+     * disassembly. Addresses are taken two at a time from start, code that
+     * starts on an odd address is shown at the odd address.
+     *
+     * @param memory Memory to disassemble from
+     * @param start  First address, normally 0x200
+     * @param end    First address after the rom
+     * @return
+     */
+    public String coverageMap(int[] memory, int start, int end) {
+        StringBuilder report = new StringBuilder();
+        int instructions = 0, ran = 0;
+        for (int pc = start; pc + 1 < end; pc += 2) {
+            // Misaligned code ran here instead, show that one
+            int address = !isCovered(pc) && isCovered(pc + 1) && pc + 2 < end ? pc + 1 : pc;
+            int opcode = (memory[address] & 0xFF) << 8 | (memory[address + 1] & 0xFF);
+            instructions++;
+            if (isCovered(address))
+                ran++;
+            report.append(String.format("%c %03x %10d  %04x  %s%n", isCovered(address) ? '*' : ' ', address,
+                    counts[address], opcode, Disassembler.disassemble(opcode)));
+        }
+        report.append(String.format("%d of %d instructions ran (%.1f%%)%n", ran, instructions,
+                instructions == 0 ? 0 : 100.0 * ran / instructions));
+        return report.toString();
+    }
+}
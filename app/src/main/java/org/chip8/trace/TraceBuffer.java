@@ -0,0 +1,112 @@
+package org.chip8.trace;
+
+/**
+ * The last few thousand instructions, kept in plain int arrays.
+ * Recording is a handful of array stores, nothing is formatted until
+ * format() is called for a record someone wants to see.
+ *
+ * Each record holds the PC, the opcode, I, and the registers the instruction
+ * names (V[x], V[y]) plus VF, all as they were just before it ran.
+ * Not thread safe, read it from the thread that runs the Cpu.
+ */
+public class TraceBuffer implements TraceSink {
+
+    private final int[] pcs, opcodes, is, registers;
+    private final int mask;
+    private long count;
+
+    /**
+     * @param capacity Rounded up to a power of two
+     */
+    public TraceBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        pcs = new int[size];
+        opcodes = new int[size];
+        is = new int[size];
+        registers = new int[size];
+        mask = size - 1;
+    }
+
+    @Override
+    public void record(int pc, int opcode, int i, int[] v) {
+        int slot = (int) count & mask;
+        pcs[slot] = pc;
+        opcodes[slot] = opcode;
+        is[slot] = i;
+        registers[slot] = v[(opcode >> 8) & 0xF] << 16 | v[(opcode >> 4) & 0xF] << 8 | v[0xF];
+        count++;
+    }
+
+    /**
+     * Total number of instructions ever recorded
+     * 
+     * @return
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Index of the oldest record still held
+     * 
+     * @return
+     */
+    public long getFirst() {
+        return Math.max(0, count - getCapacity());
+    }
+
+    public boolean contains(long index) {
+        return index >= getFirst() && index < count;
+    }
+
+    public int getPc(long index) {
+        return pcs[(int) index & mask];
+    }
+
+    public int getOpcode(long index) {
+        return opcodes[(int) index & mask];
+    }
+
+    public int getI(long index) {
+        return is[(int) index & mask];
+    }
+
+    /**
+     * @param index
+     * @return V[x] << 16 | V[y] << 8 | VF
+     */
+    public int getRegisters(long index) {
+        return registers[(int) index & mask];
+    }
+
+    /**
+     * Format a record, e.g.
+     * 0202 6105 LD V1, $05 I=20a Vx=00 Vy=00 VF=00
+     * 
+     * @param index Index from 0 to getCount(), must still be held
+     * @return
+     */
+    public String format(long index) {
+        int slot = (int) index & mask;
+        return format(pcs[slot], opcodes[slot], is[slot], registers[slot]);
+    }
+
+    /**
+     * Format one instruction the way every trace shows it
+     * 
+     * @param pc
+     * @param opcode
+     * @param i
+     * @param registers V[x] << 16 | V[y] << 8 | VF
+     * @return
+     */
+    static String format(int pc, int opcode, int i, int registers) {
+        return String.format("%04x %04x %-16s I=%03x Vx=%02x Vy=%02x VF=%02x", pc, opcode,
+                Disassembler.disassemble(opcode), i, (registers >> 16) & 0xFF, (registers >> 8) & 0xFF,
+                registers & 0xFF);
+    }
+}
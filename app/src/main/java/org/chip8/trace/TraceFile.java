@@ -0,0 +1,100 @@
+package org.chip8.trace;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes every instruction to a binary file through a memory mapped window,
+ * so recording is a few stores into memory and the OS does the writing.
+ *
+ * The file is a 16 byte header followed by 16 byte records, little endian:
+ *
+ * header: "C8TR", version (int), record size (int), reserved (int)
+ * record: pc (u16), opcode (u16), I (u16), V[x] (u8), V[y] (u8), VF (u8),
+ * reserved (3 bytes), hash of all V registers (int, h = h * 31 + V[n] from V0)
+ *
+ * The number of records is the file size / 16 - 1, the file is cut down to
+ * size by close(). Read it back with TraceQuery.
+ */
+public class TraceFile implements TraceSink, AutoCloseable {
+
+    static final int MAGIC = 0x52543843; // "C8TR"
+    static final int VERSION = 1;
+    static final int RECORD_SIZE = 16;
+
+    /**
+     * How much of the file is mapped at once, a multiple of RECORD_SIZE
+     */
+    private static final long WINDOW = 64L << 20;
+
+    private final FileChannel channel;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long count;
+
+    /**
+     * @param path File to write, replaced if it exists
+     * @throws IOException
+     */
+    public TraceFile(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        windowStart = 0;
+        map();
+        window.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0);
+    }
+
+    private void map() throws IOException {
+        window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, WINDOW);
+        window.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void record(int pc, int opcode, int i, int[] v) {
+        if (!window.hasRemaining())
+            nextWindow();
+        int hash = 0;
+        for (int register = 0; register < 16; register++) {
+            hash = hash * 31 + v[register];
+        }
+        // One int per field pair keeps it to four stores
+        window.putInt(pc | opcode << 16);
+        window.putInt((i & 0xFFFF) | v[(opcode >> 8) & 0xF] << 16 | v[(opcode >> 4) & 0xF] << 24);
+        window.putInt(v[0xF]);
+        window.putInt(hash);
+        count++;
+    }
+
+    private void nextWindow() {
+        try {
+            windowStart += WINDOW;
+            map();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not grow trace file", e);
+        }
+    }
+
+    /**
+     * Number of instructions written so far
+     * 
+     * @return
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Flush and cut the file down to the records actually written
+     */
+    @Override
+    public void close() throws IOException {
+        window.force();
+        window = null;
+        channel.truncate(RECORD_SIZE + count * RECORD_SIZE);
+        channel.close();
+    }
+}
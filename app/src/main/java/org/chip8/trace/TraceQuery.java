@@ -0,0 +1,127 @@
+package org.chip8.trace;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a trace written by TraceFile and prints the records that match.
+ *
+ * Usage: TraceQuery trace.bin [--pc FROM-TO] [--class 1,2,D] [--from N] [--to N] [--limit N] [--hash]
+ */
+public class TraceQuery {
+
+    private Path file;
+    private int pcFrom = 0, pcTo = 0xFFFF;
+    /**
+     * Bit n set when opcodes starting with hex digit n are wanted
+     */
+    private int classes = 0xFFFF;
+    private long from = 0, to = Long.MAX_VALUE, limit = Long.MAX_VALUE;
+    private boolean printHash = false;
+
+    private static void usage() {
+        System.out.println("Usage: TraceQuery trace.bin [options]");
+        System.out.println("  --pc FROM-TO   Only addresses in this range, hex, inclusive");
+        System.out.println("  --class LIST   Only these opcode classes (first hex digit), e.g. 1,2,B");
+        System.out.println("  --from N       Skip instructions before index N");
+        System.out.println("  --to N         Stop at instruction index N (exclusive)");
+        System.out.println("  --limit N      Print at most N records");
+        System.out.println("  --hash         Also print the hash of all V registers");
+    }
+
+    private boolean parseArgs(String[] args) {
+        for (int index = 0; index < args.length; index++) {
+            switch (args[index]) {
+                case "--pc":
+                    String[] range = args[++index].split("-");
+                    pcFrom = Integer.parseInt(range[0], 16);
+                    pcTo = Integer.parseInt(range[range.length - 1], 16);
+                    break;
+                case "--class":
+                    classes = 0;
+                    for (String digit : args[++index].split(",")) {
+                        classes |= 1 << Integer.parseInt(digit.trim(), 16);
+                    }
+                    break;
+                case "--from":
+                    from = Long.parseLong(args[++index]);
+                    break;
+                case "--to":
+                    to = Long.parseLong(args[++index]);
+                    break;
+                case "--limit":
+                    limit = Long.parseLong(args[++index]);
+                    break;
+                case "--hash":
+                    printHash = true;
+                    break;
+                default:
+                    if (args[index].startsWith("--") || file != null)
+                        return false;
+                    file = Paths.get(args[index]);
+                    break;
+            }
+        }
+        return file != null;
+    }
+
+    private void query() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, TraceFile.RECORD_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != TraceFile.MAGIC || header.getInt() != TraceFile.VERSION
+                    || header.getInt() != TraceFile.RECORD_SIZE) {
+                System.out.println(file + " is not a trace file");
+                return;
+            }
+
+            long count = channel.size() / TraceFile.RECORD_SIZE - 1;
+            long end = Math.min(count, to);
+            // Map a window at a time, big traces do not fit in one buffer
+            long perWindow = Integer.MAX_VALUE / TraceFile.RECORD_SIZE;
+            long printed = 0;
+            for (long start = Math.max(0, from); start < end && printed < limit; start += perWindow) {
+                long records = Math.min(perWindow, end - start);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY,
+                        (start + 1) * TraceFile.RECORD_SIZE, records * TraceFile.RECORD_SIZE);
+                window.order(ByteOrder.LITTLE_ENDIAN);
+                for (int record = 0; record < records && printed < limit; record++) {
+                    int offset = record * TraceFile.RECORD_SIZE;
+                    int pcAndOpcode = window.getInt(offset);
+                    int pc = pcAndOpcode & 0xFFFF;
+                    int opcode = pcAndOpcode >>> 16;
+                    if (pc < pcFrom || pc > pcTo || (classes & (1 << (opcode >> 12))) == 0)
+                        continue;
+                    int iAndRegisters = window.getInt(offset + 4);
+                    int registers = (iAndRegisters >>> 16 & 0xFF) << 16 | (iAndRegisters >>> 24) << 8
+                            | window.get(offset + 8) & 0xFF;
+                    String line = String.format("%10d ", start + record)
+                            + TraceBuffer.format(pc, opcode, iAndRegisters & 0xFFFF, registers);
+                    if (printHash)
+                        line += String.format(" V#=%08x", window.getInt(offset + 12));
+                    System.out.println(line);
+                    printed++;
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        TraceQuery query = new TraceQuery();
+        if (!query.parseArgs(args)) {
+            usage();
+            System.exit(1);
+        }
+        try {
+            query.query();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.chip8.trace;
+
+/**
+ * Receives every instruction the Cpu executes, just before it runs.
+ * Implementations are called on the emulation thread for every instruction,
+ * so they must not allocate or format anything.
+ */
+public interface TraceSink {
+
+    /**
+     * @param pc     Address of the instruction
+     * @param opcode The instruction
+     * @param i      I register
+     * @param v      V registers, only valid for the duration of the call
+     */
+    void record(int pc, int opcode, int i, int[] v);
+}
@@ -0,0 +1,91 @@
+package org.chip8.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * Once warmed up, running instructions must not allocate anything.
+ */
+class CpuAllocationTest {
+
+    /**
+     * Calls, returns, random numbers, draws, BCD, memory stores and loads,
+     * timers and arithmetic in an endless loop.
+     */
+    private static final int[] ROM = {
+            0xA300, // 200 LD I, $300
+            0x6000, // 202 LD V0, $00
+            0x2220, // 204 CALL $220
+            0xC1FF, // 206 RND V1, $FF
+            0xD015, // 208 DRW V0, V1, 5
+            0xF155, // 20A LD [I], V1
+            0xF233, // 20C LD B, V2
+            0xF265, // 20E LD V2, [I]
+            0xF115, // 210 LD DT, V1
+            0xF207, // 212 LD V2, DT
+            0x7001, // 214 ADD V0, $01
+            0x1204, // 216 JP $204
+            0x0000, // 218
+            0x0000, // 21A
+            0x0000, // 21C
+            0x0000, // 21E
+            0x8214, // 220 ADD V2, V1
+            0x8025, // 222 SUB V0, V2
+            0x00EE, // 224 RET
+    };
+
+    /**
+     * Run in slices like a frame loop would, the JIT compiles some blocks only
+     * once they have been cut short at the end of a slice often enough
+     */
+    private static final int SLICE = 1000;
+    private static final int WARM_UP_SLICES = 1000;
+    private static final int MEASURED_SLICES = 5000;
+
+    /**
+     * A little slack for the measuring itself
+     */
+    private static final long ALLOWED_BYTES = 1024;
+
+    @ParameterizedTest
+    @EnumSource(Interpreter.class)
+    void runningDoesNotAllocate(Interpreter interpreter, @TempDir Path aotCache) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        Cpu cpu = new Cpu();
+        cpu.setSeed(1);
+        cpu.setAotCache(new AotCache(aotCache));
+        cpu.setInterpreter(interpreter);
+        cpu.loadRom(TestRoms.toBytes(ROM));
+
+        run(cpu, WARM_UP_SLICES);
+
+        long before = threads.getCurrentThreadAllocatedBytes();
+        long executed = run(cpu, MEASURED_SLICES);
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+        assertEquals((long) MEASURED_SLICES * SLICE, executed);
+        assertEquals(Cpu.Status.SUCCESS, cpu.getStatus());
+        assertTrue(allocated < ALLOWED_BYTES,
+                interpreter + " allocated " + allocated + " bytes in " + executed + " cycles");
+    }
+
+    private static long run(Cpu cpu, int slices) {
+        long executed = 0;
+        for (int slice = 0; slice < slices; slice++) {
+            executed += cpu.run(SLICE);
+        }
+        return executed;
+    }
+}
@@ -0,0 +1,218 @@
+package org.chip8.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * Every interpreter has to end every frame in exactly the state the plain
+ * switch interpreter does, the JIT and AOT compilers included.
+ */
+class InterpreterDifferentialTest {
+
+    private static final int ROMS = 40;
+    private static final int FRAMES = 300;
+    /**
+     * Odd, so frames end in the middle of compiled blocks
+     */
+    private static final int INSTRUCTIONS_PER_FRAME = 37;
+    private static final int ROM_SIZE = 0x100;
+
+    /**
+     * Patches its own hot loop: counts V2 up to $40 by 1, then rewrites the
+     * ADD at 202 to add 3 and runs the loop again, eight times, then stops.
+     */
+    private static final int[] SELF_MODIFYING_ROM = {
+            0x6200, // 200 LD V2, $00
+            0x7201, // 202 ADD V2, $01, becomes ADD V2, $03
+            0x3240, // 204 SE V2, $40
+            0x1202, // 206 JP $202
+            0x6072, // 208 LD V0, $72
+            0x6103, // 20A LD V1, $03
+            0xA202, // 20C LD I, $202
+            0xF155, // 20E LD [I], V1
+            0x6200, // 210 LD V2, $00
+            0x7301, // 212 ADD V3, $01
+            0x3308, // 214 SE V3, $08
+            0x1202, // 216 JP $202
+            0x1218, // 218 JP $218
+    };
+
+    /**
+     * Mostly arithmetic, flag setting 8XY_ opcodes, skips and jumps back into
+     * the middle of earlier blocks. I only ever points at $300-$3FF, so the
+     * rom never overwrites itself, and the last two words jump back to the
+     * start so nothing runs off the end.
+     */
+    private static byte[] randomRom(Random random, Platform platform) {
+        int[] opcodes = new int[ROM_SIZE / 2];
+        for (int index = 0; index < opcodes.length - 2; index++) {
+            int x = random.nextInt(16), y = random.nextInt(16), nn = random.nextInt(256);
+            int jump = 0x200 + random.nextInt(opcodes.length) * 2;
+            int opcode;
+            switch (random.nextInt(16)) {
+                case 0:
+                    opcode = 0x3000 | x << 8 | nn;
+                    break;
+                case 1:
+                    opcode = 0x4000 | x << 8 | nn;
+                    break;
+                case 2:
+                    opcode = 0x5000 | x << 8 | y << 4;
+                    if (platform == Platform.XOCHIP && random.nextBoolean())
+                        opcode |= 2 + random.nextInt(2);
+                    break;
+                case 3:
+                    opcode = 0x9000 | x << 8 | y << 4;
+                    break;
+                case 4:
+                case 5:
+                    opcode = 0x6000 | x << 8 | nn;
+                    break;
+                case 6:
+                    opcode = 0x7000 | x << 8 | nn;
+                    break;
+                case 7:
+                case 8:
+                case 9:
+                    opcode = 0x8000 | x << 8 | y << 4 | new int[] { 0, 1, 2, 3, 4, 5, 6, 7, 0xE }[random.nextInt(9)];
+                    break;
+                case 10:
+                    opcode = 0x1000 | jump;
+                    break;
+                case 11:
+                    opcode = 0xA300 | random.nextInt(0xF0);
+                    break;
+                case 12:
+                    opcode = 0xC000 | x << 8 | nn;
+                    break;
+                case 13:
+                    opcode = 0xD000 | x << 8 | y << 4 | random.nextInt(16);
+                    break;
+                case 14:
+                    opcode = 0xF000 | x << 8 | new int[] { 0x07, 0x15, 0x18, 0x33, 0x55, 0x65 }[random.nextInt(6)];
+                    break;
+                default:
+                    if (platform == Platform.CHIP8) {
+                        opcode = 0x8000 | x << 8 | y << 4 | 4;
+                    } else if (platform == Platform.XOCHIP && index < opcodes.length - 3 && random.nextBoolean()) {
+                        // Four bytes long, skips have to jump over both words
+                        opcodes[index++] = 0xF000;
+                        opcode = 0x0300 | random.nextInt(0xF0);
+                    } else {
+                        opcode = new int[] { 0x00C0 | random.nextInt(16), 0x00FB, 0x00FC, 0x00FE, 0x00FF }[random
+                                .nextInt(5)];
+                    }
+                    break;
+            }
+            opcodes[index] = opcode;
+        }
+        opcodes[opcodes.length - 2] = 0x1200;
+        opcodes[opcodes.length - 1] = 0x1200;
+        return TestRoms.toBytes(opcodes);
+    }
+
+    private static Cpu cpu(byte[] rom, Platform platform, Interpreter interpreter, Path aotCache) {
+        Cpu cpu = new Cpu();
+        cpu.setPlatform(platform);
+        cpu.setSeed(99);
+        cpu.setAotCache(new AotCache(aotCache));
+        cpu.setInterpreter(interpreter);
+        cpu.loadRom(rom);
+        return cpu;
+    }
+
+    private static void runFrame(Cpu cpu) {
+        cpu.run(INSTRUCTIONS_PER_FRAME);
+        cpu.handleTimers();
+    }
+
+    private static void assertSameFrames(byte[] rom, Platform platform, Interpreter interpreter, Path aotCache,
+            String name) {
+        Cpu expected = cpu(rom, platform, Interpreter.SWITCH, aotCache);
+        Cpu actual = cpu(rom, platform, interpreter, aotCache);
+        for (int frame = 0; frame < FRAMES; frame++) {
+            runFrame(expected);
+            runFrame(actual);
+            assertEquals(expected.stateHash(), actual.stateHash(), name + " frame " + frame);
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Interpreter.class)
+    void randomRomsMatchSwitch(Interpreter interpreter, @TempDir Path aotCache) {
+        for (Platform platform : Platform.values()) {
+            Random random = new Random(platform.ordinal());
+            for (int rom = 0; rom < ROMS; rom++) {
+                assertSameFrames(randomRom(random, platform), platform, interpreter, aotCache,
+                        interpreter + " " + platform + " rom " + rom);
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Interpreter.class)
+    void selfModifyingCodeMatchesSwitch(Interpreter interpreter, @TempDir Path aotCache) {
+        byte[] rom = TestRoms.toBytes(SELF_MODIFYING_ROM);
+        assertSameFrames(rom, Platform.CHIP8, interpreter, aotCache, interpreter.toString());
+
+        Cpu cpu = cpu(rom, Platform.CHIP8, interpreter, aotCache);
+        for (int frame = 0; frame < FRAMES; frame++) {
+            runFrame(cpu);
+        }
+        assertEquals(0x218, cpu.getPC());
+        assertEquals(8, cpu.getV()[3]);
+        assertEquals(0x03, cpu.getMemory()[0x203]);
+        // The loop was compiled before it was patched, so the old block had to go
+        if (interpreter == Interpreter.JIT || interpreter == Interpreter.AOT)
+            assertTrue(cpu.getJit().getInvalidatedBlocks() > 0, interpreter + " never dropped the patched block");
+    }
+
+    @ParameterizedTest
+    @EnumSource(Platform.class)
+    void switchingToAotMidRunMatchesSwitch(Platform platform, @TempDir Path aotCache) {
+        byte[] rom = randomRom(new Random(42), platform);
+        Cpu expected = cpu(rom, platform, Interpreter.SWITCH, aotCache);
+        Cpu actual = cpu(rom, platform, Interpreter.JIT, aotCache);
+        for (int frame = 0; frame < FRAMES; frame++) {
+            if (frame == FRAMES / 2)
+                actual.setInterpreter(Interpreter.AOT);
+            runFrame(expected);
+            runFrame(actual);
+            assertEquals(expected.stateHash(), actual.stateHash(), platform + " frame " + frame);
+        }
+
+        // Dropping every block has to give back all the coverage, JIT blocks the AOT ones replaced included
+        Jit jit = actual.getJit();
+        for (int address = 0; address < actual.getMemory().length; address++) {
+            jit.invalidate(address);
+        }
+        for (int address = 0; address < actual.getMemory().length; address++) {
+            assertEquals(0, jit.getCoverage(address), platform + " address " + address);
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Interpreter.class)
+    void switchingToAotAfterSelfModifyingMatchesSwitch(Interpreter interpreter, @TempDir Path aotCache) {
+        byte[] rom = TestRoms.toBytes(SELF_MODIFYING_ROM);
+        // Fills the cache with the unpatched rom
+        cpu(rom, Platform.CHIP8, Interpreter.AOT, aotCache);
+        Cpu expected = cpu(rom, Platform.CHIP8, Interpreter.SWITCH, aotCache);
+        Cpu actual = cpu(rom, Platform.CHIP8, interpreter, aotCache);
+        for (int frame = 0; frame < FRAMES; frame++) {
+            // By frame 10 the loop at 202 has been patched
+            if (frame == 10)
+                actual.setInterpreter(Interpreter.AOT);
+            runFrame(expected);
+            runFrame(actual);
+            assertEquals(expected.stateHash(), actual.stateHash(), interpreter + " frame " + frame);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.chip8.cpu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Only code that can run decides the platform, data that looks like
+ * Super-Chip or XO-Chip opcodes does not.
+ */
+class PlatformTest {
+
+    @Test
+    void dataAfterTheCodeIsIgnored() {
+        // The IBM logo's sprites hold 00FF and F001, nothing ever jumps there
+        assertEquals(Platform.CHIP8, Platform.detect(TestRoms.toBytes(new int[] {
+                0x00E0, // 200 CLS
+                0xA206, // 202 LD I, $206
+                0x1204, // 204 JP $204
+                0x00FF, // 206 sprite
+                0xF001, // 208 sprite
+        })));
+    }
+
+    @Test
+    void reachableOpcodesDecide() {
+        assertEquals(Platform.SCHIP, Platform.detect(TestRoms.toBytes(new int[] {
+                0x00FF, // 200 HIGH
+                0x1202, // 202 JP $202
+        })));
+        // Only reached by skipping the jump
+        assertEquals(Platform.XOCHIP, Platform.detect(TestRoms.toBytes(new int[] {
+                0x3000, // 200 SE V0, $00
+                0x1200, // 202 JP $200
+                0xF101, // 204 PLANE 1
+                0x1206, // 206 JP $206
+        })));
+    }
+
+    @Test
+    void romTooBigForChip8IsXoChip() {
+        assertEquals(Platform.XOCHIP, Platform.detect(new byte[4096 - 0x200 + 2]));
+        assertEquals(Platform.CHIP8, Platform.detect(new byte[4096 - 0x200]));
+    }
+}
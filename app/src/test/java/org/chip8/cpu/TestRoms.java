@@ -0,0 +1,37 @@
+package org.chip8.cpu;
+
+/**
+ * Roms the tests run, written as opcodes
+ */
+public final class TestRoms {
+
+    /**
+     * Random numbers, BCD stores, draws and timers, so every frame changes
+     * registers, memory and screen
+     */
+    public static final int[] BUSY = {
+            0xA300, // 200 LD I, $300
+            0xC0FF, // 202 RND V0, $FF
+            0x7101, // 204 ADD V1, $01
+            0xF033, // 206 LD B, V0
+            0xD015, // 208 DRW V0, V1, 5
+            0xF115, // 20A LD DT, V1
+            0x1202, // 20C JP $202
+    };
+
+    private TestRoms() {
+    }
+
+    /**
+     * @param opcodes
+     * @return The opcodes as rom bytes, high byte first
+     */
+    public static byte[] toBytes(int[] opcodes) {
+        byte[] rom = new byte[opcodes.length * 2];
+        for (int index = 0; index < opcodes.length; index++) {
+            rom[index * 2] = (byte) (opcodes[index] >> 8);
+            rom[index * 2 + 1] = (byte) opcodes[index];
+        }
+        return rom;
+    }
+}
@@ -0,0 +1,116 @@
+package org.chip8.state;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.chip8.cpu.AotCache;
+import org.chip8.cpu.Cpu;
+import org.chip8.cpu.Interpreter;
+import org.chip8.cpu.TestRoms;
+import org.chip8.rom.Rom;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * A recording played back must come out the same on every frame, whatever
+ * interpreter runs it.
+ */
+class InputLogTest {
+
+    /**
+     * Moves a random sprite around with the keys in V0 and V1
+     */
+    private static final int[] ROM = {
+            0x6005, // 200 LD V0, $05
+            0x6106, // 202 LD V1, $06
+            0x6201, // 204 LD V2, $01
+            0xE09E, // 206 SKP V0
+            0x1210, // 208 JP $210
+            0x7301, // 20A ADD V3, $01
+            0xC40F, // 20C RND V4, $0F
+            0xF429, // 20E LD F, V4
+            0xE1A1, // 210 SKNP V1
+            0x8324, // 212 ADD V3, V2
+            0xD345, // 214 DRW V3, V4, 5
+            0xF333, // 216 LD B, V3
+            0x1206, // 218 JP $206
+    };
+
+    private static final int FRAMES = 2000;
+    private static final int INSTRUCTIONS_PER_FRAME = 11;
+
+    /**
+     * Made up input: nothing, key 5, key 6, both, changing every few frames
+     */
+    private static int keysFor(int frame) {
+        return new int[] { 0, 1 << 5, 1 << 6, 1 << 5 | 1 << 6 }[(frame / 37) % 4];
+    }
+
+    private static Cpu cpu(long seed, Interpreter interpreter, Path aotCache) {
+        Cpu cpu = new Cpu();
+        cpu.setSeed(seed);
+        cpu.setAotCache(new AotCache(aotCache));
+        cpu.setInterpreter(interpreter);
+        cpu.loadRom(TestRoms.toBytes(ROM));
+        return cpu;
+    }
+
+    private static void runFrame(Cpu cpu, int keys) {
+        cpu.setKeys(keys);
+        cpu.run(INSTRUCTIONS_PER_FRAME);
+        cpu.handleTimers();
+    }
+
+    private static InputLog record(Path aotCache) {
+        InputLog log = new InputLog(1234, INSTRUCTIONS_PER_FRAME, Rom.hash(TestRoms.toBytes(ROM)));
+        Cpu cpu = cpu(log.getSeed(), Interpreter.SWITCH, aotCache);
+        for (int frame = 0; frame < FRAMES; frame++) {
+            runFrame(cpu, keysFor(frame));
+            log.recordFrame(keysFor(frame), cpu.stateHash());
+        }
+        return log;
+    }
+
+    @ParameterizedTest
+    @EnumSource(Interpreter.class)
+    void replayMatchesEveryFrame(Interpreter interpreter, @TempDir Path directory) throws IOException {
+        Path file = directory.resolve("input.log");
+        record(directory).write(file);
+        InputLog log = InputLog.read(file);
+
+        assertEquals(FRAMES, log.getFrames());
+        Cpu cpu = cpu(log.getSeed(), interpreter, directory);
+        for (int frame = 0; frame < log.getFrames(); frame++) {
+            runFrame(cpu, log.getKeys(frame));
+            assertEquals(log.getHash(frame), cpu.stateHash(), "frame " + frame);
+        }
+    }
+
+    @Test
+    void otherInputDiverges(@TempDir Path directory) {
+        InputLog log = record(directory);
+        Cpu cpu = cpu(log.getSeed(), Interpreter.SWITCH, directory);
+        int frame = 0;
+        while (frame < log.getFrames()) {
+            // Never press anything
+            runFrame(cpu, 0);
+            if (cpu.stateHash() != log.getHash(frame))
+                break;
+            frame++;
+        }
+        assertNotEquals(log.getFrames(), frame);
+    }
+
+    @Test
+    void keysAreStoredAsRuns(@TempDir Path directory) {
+        InputLog log = record(directory);
+        for (int frame = 0; frame < FRAMES; frame++) {
+            assertEquals(keysFor(frame), log.getKeys(frame));
+        }
+    }
+}
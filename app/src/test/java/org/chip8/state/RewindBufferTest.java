@@ -0,0 +1,131 @@
+package org.chip8.state;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.chip8.cpu.Cpu;
+import org.chip8.cpu.Platform;
+import org.chip8.cpu.TestRoms;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Stepping back has to give back every recorded frame byte for byte, across
+ * key frames and after old history was thrown away.
+ */
+class RewindBufferTest {
+
+    /**
+     * TestRoms.BUSY padded with noise, which barely compresses, to size bytes
+     */
+    private static byte[] rom(int size) {
+        byte[] code = TestRoms.toBytes(TestRoms.BUSY);
+        byte[] rom = new byte[Math.max(size, code.length)];
+        new Random(7).nextBytes(rom);
+        System.arraycopy(code, 0, rom, 0, code.length);
+        return rom;
+    }
+
+    private static Cpu cpu(Platform platform, byte[] rom) {
+        Cpu cpu = new Cpu();
+        cpu.setPlatform(platform);
+        cpu.setSeed(1);
+        cpu.loadRom(rom);
+        return cpu;
+    }
+
+    private static byte[] save(Cpu cpu) {
+        ByteBuffer state = ByteBuffer.allocate(cpu.getStateSize());
+        cpu.saveState(state);
+        return state.array();
+    }
+
+    /**
+     * Run and record frames
+     *
+     * @return The state after each frame
+     */
+    private static byte[][] record(Cpu cpu, RewindBuffer rewind, int frames) {
+        byte[][] states = new byte[frames][];
+        for (int frame = 0; frame < frames; frame++) {
+            cpu.run(11);
+            cpu.handleTimers();
+            rewind.record(cpu);
+            states[frame] = save(cpu);
+        }
+        return states;
+    }
+
+    /**
+     * Rewind as far as it goes, checking every frame on the way
+     *
+     * @return The oldest frame it got back to
+     */
+    private static int rewindAll(Cpu cpu, RewindBuffer rewind, byte[][] states) {
+        int frame = states.length - 1;
+        while (rewind.rewind(cpu)) {
+            frame--;
+            assertArrayEquals(states[frame], save(cpu), "frame " + frame);
+        }
+        return frame;
+    }
+
+    @Test
+    void restoresEveryFrameAcrossKeyFrames() {
+        Cpu cpu = cpu(Platform.CHIP8, rom(0));
+        RewindBuffer rewind = new RewindBuffer(30, 8 * 1024 * 1024, 7);
+        byte[][] states = record(cpu, rewind, 100);
+
+        assertEquals(99, rewind.getFrames());
+        assertEquals(0, rewindAll(cpu, rewind, states));
+        assertEquals(0, rewind.getFrames());
+    }
+
+    @Test
+    void recordsAgainAfterRewinding() {
+        Cpu cpu = cpu(Platform.CHIP8, rom(0));
+        RewindBuffer rewind = new RewindBuffer(30, 8 * 1024 * 1024, 7);
+        byte[][] first = record(cpu, rewind, 40);
+        for (int step = 0; step < 15; step++) {
+            assertTrue(rewind.rewind(cpu));
+        }
+        assertArrayEquals(first[24], save(cpu));
+
+        // New history goes on from frame 24
+        byte[][] second = record(cpu, rewind, 30);
+        byte[][] states = new byte[55][];
+        System.arraycopy(first, 0, states, 0, 25);
+        System.arraycopy(second, 0, states, 25, 30);
+        assertEquals(0, rewindAll(cpu, rewind, states));
+    }
+
+    @Test
+    void dropsOldestFramesPastTheTimeLimit() {
+        Cpu cpu = cpu(Platform.CHIP8, rom(0));
+        // One second is 60 frames
+        RewindBuffer rewind = new RewindBuffer(1, 8 * 1024 * 1024, 10);
+        byte[][] states = record(cpu, rewind, 200);
+
+        assertTrue(rewind.getFrames() < 60);
+        int oldest = rewindAll(cpu, rewind, states);
+        assertTrue(oldest >= 200 - 60, "got back to frame " + oldest);
+        assertFalse(rewind.rewind(cpu));
+    }
+
+    @Test
+    void dropsOldestFramesPastTheBudget() {
+        // Key frames of a big noisy XO-Chip rom are tens of KB each
+        Cpu cpu = cpu(Platform.XOCHIP, rom(0xF000));
+        int budget = (Cpu.MAX_STATE_SIZE * 2 + 16) * 2;
+        RewindBuffer rewind = new RewindBuffer(30, budget, 5);
+        byte[][] states = record(cpu, rewind, 100);
+
+        assertTrue(rewind.getBytesUsed() <= budget);
+        int oldest = rewindAll(cpu, rewind, states);
+        assertTrue(oldest > 0, "nothing was dropped");
+    }
+}
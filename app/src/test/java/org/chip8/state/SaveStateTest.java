@@ -0,0 +1,155 @@
+package org.chip8.state;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import org.chip8.cpu.Cpu;
+import org.chip8.cpu.Platform;
+import org.chip8.cpu.TestRoms;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * A save state must bring back exactly the machine it was taken from, and a
+ * state that does not fit must be refused without touching the cpu.
+ */
+class SaveStateTest {
+
+    private static Cpu cpu(Platform platform, long seed) {
+        Cpu cpu = new Cpu();
+        cpu.setPlatform(platform);
+        cpu.setSeed(seed);
+        cpu.loadRom(TestRoms.toBytes(TestRoms.BUSY));
+        return cpu;
+    }
+
+    private static void runFrames(Cpu cpu, int frames) {
+        for (int frame = 0; frame < frames; frame++) {
+            cpu.run(11);
+            cpu.handleTimers();
+        }
+    }
+
+    private static byte[] save(Cpu cpu) {
+        ByteBuffer state = ByteBuffer.allocate(cpu.getStateSize());
+        cpu.saveState(state);
+        assertFalse(state.hasRemaining(), "state is not getStateSize() bytes");
+        return state.array();
+    }
+
+    @ParameterizedTest
+    @EnumSource(Platform.class)
+    void roundTrips(Platform platform) {
+        Cpu original = cpu(platform, 1);
+        runFrames(original, 100);
+        byte[] state = save(original);
+
+        Cpu restored = cpu(platform, 2);
+        restored.loadState(ByteBuffer.wrap(state));
+        assertArrayEquals(state, save(restored));
+
+        // Random numbers included, both carry on the same way
+        for (int frame = 0; frame < 100; frame++) {
+            runFrames(original, 1);
+            runFrames(restored, 1);
+            assertArrayEquals(save(original), save(restored), "frame " + frame);
+        }
+    }
+
+    @Test
+    void refusesOtherPlatform() {
+        byte[] state = save(cpu(Platform.SCHIP, 1));
+        Cpu cpu = cpu(Platform.CHIP8, 1);
+        runFrames(cpu, 10);
+        byte[] before = save(cpu);
+        assertThrows(IllegalArgumentException.class, () -> cpu.loadState(ByteBuffer.wrap(state)));
+        assertArrayEquals(before, save(cpu));
+    }
+
+    @Test
+    void refusesOtherVersion() {
+        Cpu cpu = cpu(Platform.CHIP8, 1);
+        runFrames(cpu, 10);
+        byte[] state = save(cpu);
+        // Version is the short after the magic
+        state[5]++;
+        runFrames(cpu, 10);
+        byte[] later = save(cpu);
+        assertThrows(IllegalArgumentException.class, () -> cpu.loadState(ByteBuffer.wrap(state)));
+        assertArrayEquals(later, save(cpu));
+        state[5]--;
+        cpu.loadState(ByteBuffer.wrap(state));
+        assertArrayEquals(state, save(cpu));
+    }
+
+    @Test
+    void refusesRegistersOutsideMemory() {
+        Cpu cpu = cpu(Platform.CHIP8, 1);
+        runFrames(cpu, 10);
+        byte[] before = save(cpu);
+        // The body starts after magic, version and platform: PC, I, timers, sp
+        int[][] broken = {
+                { 7, 0xFF }, // PC $FFxx
+                { 9, 0x7F }, // I $7Fxxxxxx
+                { 9, 0xFF }, // I below 0
+                { 15, 17 }, // sp past the stack
+        };
+        for (int[] edit : broken) {
+            byte[] state = before.clone();
+            state[edit[0]] = (byte) edit[1];
+            assertThrows(IllegalArgumentException.class, () -> cpu.loadState(ByteBuffer.wrap(state)),
+                    "byte " + edit[0]);
+            assertArrayEquals(before, save(cpu), "byte " + edit[0]);
+        }
+    }
+
+    @Test
+    void refusesCutShortState() {
+        byte[] state = save(cpu(Platform.CHIP8, 1));
+        Cpu cpu = cpu(Platform.CHIP8, 1);
+        assertThrows(IllegalArgumentException.class,
+                () -> cpu.loadState(ByteBuffer.wrap(state, 0, state.length - 1)));
+        assertThrows(IllegalArgumentException.class, () -> cpu.loadState(ByteBuffer.allocate(cpu.getStateSize())));
+    }
+
+    @Test
+    void emptySlotLoadsNothing(@TempDir Path directory) throws IOException {
+        Cpu cpu = cpu(Platform.CHIP8, 1);
+        runFrames(cpu, 10);
+        byte[] state = save(cpu);
+        try (SaveSlots slots = new SaveSlots(directory.resolve("rom.slots"), cpu.getStateSize())) {
+            for (int slot = 0; slot < SaveSlots.SLOTS; slot++) {
+                assertFalse(slots.load(slot, cpu), "slot " + slot);
+            }
+        }
+        assertArrayEquals(state, save(cpu));
+    }
+
+    @Test
+    void slotsSurviveReopening(@TempDir Path directory) throws IOException {
+        Path file = directory.resolve("rom.slots");
+        Cpu cpu = cpu(Platform.XOCHIP, 1);
+        runFrames(cpu, 50);
+        byte[] state = save(cpu);
+        try (SaveSlots slots = new SaveSlots(file, cpu.getStateSize())) {
+            slots.save(3, cpu);
+        }
+
+        Cpu restored = cpu(Platform.XOCHIP, 2);
+        try (SaveSlots slots = new SaveSlots(file, restored.getStateSize())) {
+            assertTrue(slots.load(3, restored));
+            assertArrayEquals(state, save(restored));
+            assertFalse(slots.load(2, restored));
+            assertFalse(slots.load(4, restored));
+            assertThrows(IllegalArgumentException.class, () -> slots.load(SaveSlots.SLOTS, restored));
+        }
+    }
+}